@@ -0,0 +1,477 @@
+package src.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Sends the chunks of one backup in a single pass over the file. One reader stage walks the chunks in
+ * file order, reading each once into pooled direct blocks and checksumming them on the way; every block
+ * is then queued to each storage peer that gets the chunk, so a chunk with three replicas is still read
+ * once. One sender per peer frames the blocks onto its connection while the next ones are being read.
+ * The block pool and the bounded per-peer queues hold the reader back when the network or a peer is slow.
+ *
+ * Chunks up to a quarter of the pool are compressed whole, so their frame announces the packed size and
+ * checksum as usual. Larger (or uncompressed) chunks are streamed as read: their SEND_CHUNK header has
+ * '-' for the checksum and a "CRC32 n" line follows the payload.
+ *
+ * A stream that retries an earlier attempt first asks its peer with CHUNK_STATUS how much of the chunks
+ * it had in flight were kept, and sends those chunks from that offset on.
+ */
+public class BackupPipeline {
+    private static final int MAX_BLOCK_SIZE = 1 << 20;
+    private static final int MIN_BLOCK_SIZE = 64 * 1024;
+    private static final int POOL_BLOCKS = 32; // direct blocks per backup, at most 32MB in flight
+    private static final int QUEUE_PIECES = 64; // pieces queued per storage peer before the reader waits
+    private static final int UPLOAD_WINDOW = 16; // SEND_CHUNK frames in flight per storage peer before waiting for a CHUNK_OK
+
+    /** What a SEND_CHUNK header says about a chunk; each sender formats it with its own resume offset. */
+    private static final class Frame {
+        final long rq;
+        final int chunkId;
+        final int wireLength;
+        final String checksum; // "-" when a trailer carries it
+        final String codec;
+
+        Frame(long rq, int chunkId, int wireLength, String checksum, String codec) {
+            this.rq = rq;
+            this.chunkId = chunkId;
+            this.wireLength = wireLength;
+            this.checksum = checksum;
+            this.codec = codec;
+        }
+    }
+
+    /** Part of one frame for one peer: a header starts the frame, a trailer ends it ("" if the header had the checksum). */
+    private static final class Piece {
+        static final Piece END = new Piece(null, null, null);
+
+        final Frame header;
+        final Block block;
+        final String trailer;
+
+        Piece(Frame header, Block block, String trailer) {
+            this.header = header;
+            this.block = block;
+            this.trailer = trailer;
+        }
+    }
+
+    /** A pooled buffer shared by every peer it was queued to; back in the pool once the last one wrote it. */
+    private final class Block {
+        final ByteBuffer buf;
+        final AtomicInteger refs = new AtomicInteger();
+
+        Block(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) free.add(this);
+        }
+    }
+
+    /** One storage peer: the chunks it gets, in file order, and the queue its sender drains. */
+    private static final class Stream {
+        final PeerData target;
+        final List<Integer> chunkIds;
+        final boolean probe; // ask the peer what it kept of an earlier attempt first
+        final Map<Integer, Long> resume = new HashMap<>(); // chunkId -> bytes the peer already has
+        final BlockingQueue<Piece> queue = new ArrayBlockingQueue<>(QUEUE_PIECES);
+
+        Stream(PeerData target, List<Integer> chunkIds, boolean probe) {
+            this.target = target;
+            this.chunkIds = chunkIds;
+            this.probe = probe;
+        }
+    }
+
+    private final File file;
+    private final String fileName;
+    private final String uploadId;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final String[] hashes;
+    private final ConnectionPool connections;
+    private final LongSupplier rqSource;
+    private final List<Stream> streams = new ArrayList<>();
+    private final int blockSize;
+    private final BlockingQueue<Block> free = new ArrayBlockingQueue<>(POOL_BLOCKS);
+    private int allocated;
+    private final CRC32 fileCrc = new CRC32();
+    private long sequential; // bytes read from the start of the file without a gap, covered by fileCrc
+
+    /** Chunk i covers lengths[i] bytes at offsets[i]; hashes, if not null, name content-defined chunks. */
+    public BackupPipeline(File file, String fileName, String uploadId, long[] offsets, int[] lengths, String[] hashes,
+                          ConnectionPool connections, LongSupplier rqSource) {
+        this.file = file;
+        this.fileName = fileName;
+        this.uploadId = uploadId;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.hashes = hashes;
+        this.connections = connections;
+        this.rqSource = rqSource;
+        int maxLength = 0;
+        for (int length : lengths) maxLength = Math.max(maxLength, length);
+        int size = MIN_BLOCK_SIZE;
+        while (size < MAX_BLOCK_SIZE && size < maxLength) size <<= 1;
+        this.blockSize = size;
+    }
+
+    /** Sends chunkIds (in ascending order) to target; with resume, continues chunks an earlier attempt left unfinished there. */
+    public void addTarget(PeerData target, List<Integer> chunkIds, boolean resume) {
+        streams.add(new Stream(target, chunkIds, resume));
+    }
+
+    /**
+     * Reads the file once and sends every chunk to its targets, counting each CHUNK_OK into acks[chunkId] and,
+     * if journal is not null, recording it there. Returns once every stream has been acknowledged or has failed.
+     */
+    public void run(int compressionLevel, AtomicIntegerArray acks, TransferJournal journal) {
+        //every stream needs its sender (and ack reader) running at once, or the reader would wait on a queue nobody drains
+        ExecutorService senders = Executors.newCachedThreadPool();
+        List<Future<?>> running = new ArrayList<>();
+        for (Stream s : streams) running.add(senders.submit(() -> send(s, acks, journal, senders)));
+
+        //the chunk -> peers fan-out, in file order
+        List<List<Stream>> fanOut = new ArrayList<>();
+        for (int i = 0; i < lengths.length; i++) fanOut.add(new ArrayList<>());
+        for (Stream s : streams) {
+            for (int chunkId : s.chunkIds) fanOut.get(chunkId).add(s);
+        }
+        Deflater deflater = compressionLevel != Deflater.NO_COMPRESSION ? new Deflater(compressionLevel) : null;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int chunkId = 0; chunkId < lengths.length; chunkId++) {
+                List<Stream> to = fanOut.get(chunkId);
+                if (to.isEmpty()) continue;
+                if (deflater != null && lengths[chunkId] <= blockSize * (POOL_BLOCKS / 4)) {
+                    readCompressed(fc, chunkId, to, deflater);
+                } else {
+                    readStreamed(fc, chunkId, to);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.printf("Reading %s for backup failed: %s%n", fileName, e.getMessage());
+        } finally {
+            if (deflater != null) deflater.end();
+            for (Stream s : streams) putQuietly(s.queue, Piece.END);
+        }
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                System.err.println("Chunk stream failed: " + e.getMessage());
+            }
+        }
+        senders.shutdown();
+    }
+
+    /** The whole file's CRC32 if the backup read all of it in order, otherwise -1 (content-defined backups skip chunks). */
+    public long fileChecksum() {
+        return sequential == file.length() ? fileCrc.getValue() : -1;
+    }
+
+    //Streams a chunk raw as it is read; the checksum goes out after the payload
+    private void readStreamed(FileChannel fc, int chunkId, List<Stream> to) throws IOException, InterruptedException {
+        Frame header = new Frame(rqSource.getAsLong(), chunkId, lengths[chunkId], "-", ChunkCodec.RAW);
+        CRC32 crc = new CRC32();
+        long pos = offsets[chunkId];
+        long remaining = lengths[chunkId];
+        do {
+            Block b = remaining > 0 ? fill(fc, pos, remaining) : null;
+            if (b != null) {
+                crc.update(b.buf.duplicate());
+                pos += b.buf.remaining();
+                remaining -= b.buf.remaining();
+            }
+            String trailer = remaining == 0 ? "CRC32 " + crc.getValue() + "\n" : null;
+            fanOut(to, header, b, trailer);
+            header = null;
+        } while (remaining > 0);
+    }
+
+    //Reads a whole chunk and deflates it block by block; sends the packed blocks, or the raw ones if it does not shrink
+    private void readCompressed(FileChannel fc, int chunkId, List<Stream> to, Deflater deflater)
+            throws IOException, InterruptedException {
+        int length = lengths[chunkId];
+        List<Block> raw = new ArrayList<>();
+        List<Block> packed = new ArrayList<>();
+        CRC32 rawCrc = new CRC32();
+        long packedLength = 0;
+        boolean shrinks = true;
+        deflater.reset();
+        long pos = offsets[chunkId];
+        long remaining = length;
+        while (remaining > 0) {
+            Block b = fill(fc, pos, remaining);
+            raw.add(b);
+            rawCrc.update(b.buf.duplicate());
+            pos += b.buf.remaining();
+            remaining -= b.buf.remaining();
+            if (!shrinks) continue;
+            deflater.setInput(b.buf.duplicate());
+            if (remaining == 0) deflater.finish();
+            while (shrinks && !(remaining > 0 ? deflater.needsInput() : deflater.finished())) {
+                Block out = packed.isEmpty() ? null : packed.get(packed.size() - 1);
+                if (out == null || !out.buf.hasRemaining()) {
+                    out = take();
+                    packed.add(out);
+                }
+                packedLength += deflater.deflate(out.buf);
+                shrinks = packedLength < length; // give up as soon as it is clear the chunk will not shrink
+            }
+        }
+        if (length == 0) shrinks = false;
+        if (!shrinks) {
+            for (Block b : packed) recycle(b);
+            sendBlocks(to, chunkId, raw, length, rawCrc.getValue(), ChunkCodec.RAW);
+            return;
+        }
+        for (Block b : raw) recycle(b);
+        CRC32 crc = new CRC32();
+        for (Block b : packed) {
+            b.buf.flip();
+            crc.update(b.buf.duplicate());
+        }
+        sendBlocks(to, chunkId, packed, (int) packedLength, crc.getValue(), ChunkCodec.DEFLATE);
+    }
+
+    private void sendBlocks(List<Stream> to, int chunkId, List<Block> blocks, int wireLength, long checksum, String codec)
+            throws InterruptedException {
+        Frame header = new Frame(rqSource.getAsLong(), chunkId, wireLength, Long.toString(checksum), codec);
+        if (blocks.isEmpty()) {
+            fanOut(to, header, null, "");
+            return;
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            fanOut(to, i == 0 ? header : null, blocks.get(i), i == blocks.size() - 1 ? "" : null);
+        }
+    }
+
+    private void fanOut(List<Stream> to, Frame header, Block b, String trailer) throws InterruptedException {
+        if (b != null) b.refs.set(to.size());
+        for (Stream s : to) s.queue.put(new Piece(header, b, trailer));
+    }
+
+    //Reads up to one block of [pos, pos+remaining) into a pooled buffer, flipped for reading
+    private Block fill(FileChannel fc, long pos, long remaining) throws IOException, InterruptedException {
+        Block b = take();
+        b.buf.limit((int) Math.min(b.buf.capacity(), remaining));
+        while (b.buf.hasRemaining()) {
+            int n = fc.read(b.buf, pos + b.buf.position());
+            if (n < 0) {
+                recycle(b);
+                throw new IOException("file ended inside the chunk at " + pos);
+            }
+        }
+        b.buf.flip();
+        if (pos == sequential) {
+            fileCrc.update(b.buf.duplicate());
+            sequential += b.buf.remaining();
+        }
+        return b;
+    }
+
+    private Block take() throws InterruptedException {
+        Block b = free.poll();
+        if (b == null && allocated < POOL_BLOCKS) {
+            allocated++;
+            b = new Block(ByteBuffer.allocateDirect(blockSize));
+        }
+        if (b == null) b = free.take();
+        b.buf.clear();
+        return b;
+    }
+
+    private void recycle(Block b) {
+        b.refs.set(0);
+        free.add(b);
+    }
+
+    private static void putQuietly(BlockingQueue<Piece> queue, Piece p) {
+        try {
+            queue.put(p);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drains one peer's queue onto a connection, keeping up to UPLOAD_WINDOW frames in flight. The storage peer
+     * answers every frame, in order, with CHUNK_OK or CHUNK_ERROR on the same stream; a second thread from
+     * pool consumes those and counts each CHUNK_OK into acks[chunkId]. After a failure the queue is still
+     * drained so the reader never waits on a dead peer.
+     */
+    private void send(Stream s, AtomicIntegerArray acks, TransferJournal journal, ExecutorService pool) {
+        ConnectionPool.Connection conn = null;
+        InetSocketAddress remote = new InetSocketAddress(s.target.getIp(), s.target.getTcpPort());
+        try {
+            conn = connections.borrow(remote);
+            if (s.probe) {
+                try {
+                    probe(s, conn);
+                } catch (IOException stale) {
+                    connections.invalidate(conn);
+                    if (!conn.isReused()) throw stale;
+                    //the pooled connection had been dropped by the other side; retry once on a fresh one
+                    conn = connections.open(remote);
+                    probe(s, conn);
+                }
+            }
+        } catch (IOException e) {
+            if (conn != null) connections.invalidate(conn);
+            conn = null;
+            System.err.printf("Cannot reach %s for %d chunk(s): %s%n", s.target.getName(), s.chunkIds.size(), e.getMessage());
+        }
+        Semaphore window = new Semaphore(UPLOAD_WINDOW);
+        final ConnectionPool.Connection acked = conn;
+        Future<Integer> reader = conn != null ? pool.submit(readAcks(s, acked, window, acks, journal)) : null;
+        boolean sending = conn != null;
+        int frames = 0;
+        long skip = 0; // bytes of the current frame the peer kept from an earlier attempt
+        try {
+            while (true) {
+                Piece p = s.queue.take();
+                if (p == Piece.END) break;
+                try {
+                    if (!sending) continue;
+                    if (p.header != null) {
+                        Frame f = p.header;
+                        skip = Math.min(s.resume.getOrDefault(f.chunkId, 0L), f.wireLength);
+                        window.acquire();
+                        conn.out.write(String.format("SEND_CHUNK %02d %s %d %d %s %s%s\n", f.rq, fileName, f.chunkId,
+                                f.wireLength, f.checksum, uploadId, frameSuffix(hashes != null ? hashes[f.chunkId] : null,
+                                        f.codec, lengths[f.chunkId], skip)).getBytes());
+                    }
+                    if (p.block != null) {
+                        ByteBuffer data = p.block.buf.duplicate();
+                        int kept = (int) Math.min(skip, data.remaining());
+                        data.position(data.position() + kept);
+                        skip -= kept;
+                        conn.out.flush(); // the payload goes straight from the direct block to the socket
+                        SocketChannel ch = conn.channel();
+                        while (data.hasRemaining()) ch.write(data);
+                    }
+                    if (p.trailer != null) {
+                        conn.out.write(p.trailer.getBytes());
+                        conn.out.flush();
+                        frames++;
+                    }
+                } catch (IOException e) {
+                    sending = false;
+                    System.err.printf("Chunk stream to %s failed: %s%n", s.target.getName(), e.getMessage());
+                    connections.invalidate(conn);
+                } finally {
+                    if (p.block != null) p.block.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sending = false;
+        }
+        if (conn == null) return;
+        if (frames < s.chunkIds.size()) {
+            sending = false;
+            connections.invalidate(conn); // the ack reader would wait for frames that were never sent
+        }
+        try {
+            int ok = reader.get();
+            if (sending) connections.release(conn);
+            System.out.printf("%s acknowledged %d/%d chunk(s)%n", s.target.getName(), ok, s.chunkIds.size());
+        } catch (Exception e) {
+            connections.invalidate(conn);
+            System.err.printf("Acks from %s failed: %s%n", s.target.getName(), e.getMessage());
+        }
+    }
+
+    //Asks the peer how much it kept of the first chunks, the ones an earlier attempt could have had in flight
+    private void probe(Stream s, ConnectionPool.Connection conn) throws IOException {
+        List<Integer> asked = s.chunkIds.subList(0, Math.min(UPLOAD_WINDOW, s.chunkIds.size()));
+        for (int chunkId : asked) {
+            String hash = hashes != null ? hashes[chunkId] : null;
+            conn.out.write(String.format("CHUNK_STATUS %02d %s %d %s%s\n", rqSource.getAsLong(), fileName, chunkId, uploadId,
+                    hash != null ? " " + hash : "").getBytes());
+        }
+        conn.out.flush();
+        long kept = 0;
+        for (int ignored : asked) {
+            String reply = PeerUDP.readLine(conn.in);
+            if (reply.isEmpty()) throw new IOException(s.target.getName() + " closed the connection");
+            //CHUNK_PARTIAL rq fileName chunkId bytes
+            String[] r = reply.split("\\s+");
+            if (r.length < 5 || !"CHUNK_PARTIAL".equals(r[0])) throw new IOException("Unexpected reply to CHUNK_STATUS: " + reply);
+            try {
+                long bytes = Long.parseLong(r[4]);
+                if (bytes > 0) {
+                    s.resume.put(Integer.parseInt(r[3]), bytes);
+                    kept += bytes;
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected reply to CHUNK_STATUS: " + reply);
+            }
+        }
+        if (kept > 0) System.out.printf("%s kept %d byte(s) of earlier attempts, resuming from there%n", s.target.getName(), kept);
+    }
+
+    private Callable<Integer> readAcks(Stream s, ConnectionPool.Connection conn, Semaphore window,
+                                       AtomicIntegerArray acks, TransferJournal journal) {
+        return () -> {
+            int ok = 0;
+            try {
+                for (int i = 0; i < s.chunkIds.size(); i++) {
+                    String ack = PeerUDP.readLine(conn.in);
+                    if (ack.isEmpty()) throw new IOException(s.target.getName() + " closed the stream after " + i + " ack(s)");
+                    String[] a = ack.split("\\s+");
+                    int ackChunk = -1;
+                    try { ackChunk = a.length >= 4 ? Integer.parseInt(a[3]) : -1; } catch (NumberFormatException ignore) {}
+                    if ("CHUNK_OK".equals(a[0]) && ackChunk >= 0 && ackChunk < acks.length()) {
+                        acks.incrementAndGet(ackChunk);
+                        if (journal != null) journal.done(ackChunk, s.target.getName());
+                        ok++;
+                    } else {
+                        System.out.println("Ack: " + ack);
+                    }
+                    window.release();
+                }
+                return ok;
+            } catch (IOException e) {
+                connections.invalidate(conn); // makes a sender blocked in write fail instead of hanging
+                window.release(s.chunkIds.size());
+                throw e;
+            }
+        };
+    }
+
+    //Optional trailing SEND_CHUNK fields: the content hash ('-' if none) and, for a compressed chunk, its codec and raw size
+    static String frameSuffix(String hash, String codec, long rawLength) {
+        if (ChunkCodec.RAW.equals(codec)) return hash != null ? " " + hash : "";
+        return " " + (hash != null ? hash : "-") + " " + codec + " " + rawLength;
+    }
+
+    //The same, for a chunk resumed from offset from: then every field is spelled out, up to the offset
+    static String frameSuffix(String hash, String codec, long rawLength, long from) {
+        if (from <= 0) return frameSuffix(hash, codec, rawLength);
+        return " " + (hash != null ? hash : "-") + " " + codec + " " + rawLength + " " + from;
+    }
+}
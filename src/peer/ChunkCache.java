@@ -0,0 +1,267 @@
+package src.peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Read cache in front of the chunk store for GET_CHUNK. Popular chunks, such as a shared base
+ * image that a whole fleet restores, are kept in off-heap pages, so serving them again costs
+ * neither a disk read nor heap. A chunk is only admitted on its second request: the first one
+ * leaves just its key behind as a ghost and is served zero-copy from the store. Eviction is
+ * segmented LRU. An admitted chunk enters a small probation segment and moves to the protected
+ * segment when it is asked for again, either while it is still in probation or soon after it
+ * was evicted, which the ghosts also remember. A restore that streams through many cold chunks
+ * therefore costs the cache nothing but keys and cannot flush the hot set. Pages are allocated
+ * once, up to the budget, and reused after that.
+ */
+public class ChunkCache {
+    public static final int PAGE_SIZE = 8 * 1024; // small, since content-defined chunks average 8 KB
+    private static final int PROBATION_PERCENT = 20; // the rest of the budget is the protected segment
+
+    /** A cached chunk. It stays pinned while it is served, so its pages are not reused under the reader. */
+    public static final class Entry {
+        final String key;
+        final long version;
+        final long length;
+        final ByteBuffer[] pages;
+        int pins = 1;
+        boolean listed;    // in probation or protected
+        boolean protect;   // which of the two
+
+        private Entry(String key, long version, long length, ByteBuffer[] pages) {
+            this.key = key;
+            this.version = version;
+            this.length = length;
+            this.pages = pages;
+        }
+
+        /** Writes the chunk's bytes from offset from on to sink. */
+        public void writeTo(WritableByteChannel sink, long from) throws IOException {
+            long skip = from;
+            for (ByteBuffer page : pages) {
+                ByteBuffer v = page.duplicate().flip();
+                if (skip >= v.remaining()) {
+                    skip -= v.remaining();
+                    continue;
+                }
+                v.position((int) skip);
+                skip = 0;
+                while (v.hasRemaining()) sink.write(v);
+            }
+        }
+
+        //Reads length bytes at offset of ch into the pages
+        private void fill(FileChannel ch, long offset) throws IOException {
+            long pos = offset;
+            long remaining = length;
+            for (ByteBuffer page : pages) {
+                page.clear();
+                if (remaining < PAGE_SIZE) page.limit((int) remaining);
+                while (page.hasRemaining()) {
+                    int n = ch.read(page, pos);
+                    if (n < 0) throw new IOException("Chunk store ended inside a chunk");
+                    pos += n;
+                }
+                remaining -= page.position();
+            }
+        }
+    }
+
+    //access ordered, so the eldest entry of each is the least recently used one
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> ghosts = new LinkedHashMap<>(); // key -> evicted (else requested once), oldest first
+    private final ArrayDeque<ByteBuffer> freePages = new ArrayDeque<>();
+    private int budgetPages;
+    private int allocatedPages;   // direct pages in existence: free, cached, or held by evicted entries still being served
+    private int probationPages;
+    private int protectedPages;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ChunkCache(long budgetBytes) {
+        setBudget(budgetBytes);
+    }
+
+    /** Changes the memory budget; 0 turns the cache off. Shrinking evicts chunks and releases their pages. */
+    public synchronized void setBudget(long budgetBytes) {
+        budgetPages = (int) Math.min(Integer.MAX_VALUE, budgetBytes / PAGE_SIZE);
+        while (probationPages + protectedPages > budgetPages && evictOne(true)) {
+            //evicting
+        }
+        while (allocatedPages > budgetPages && !freePages.isEmpty()) {
+            freePages.pop(); // the GC frees its memory
+            allocatedPages--;
+        }
+    }
+
+    public synchronized long budget() {
+        return (long) budgetPages * PAGE_SIZE;
+    }
+
+    /** The cached copy of key at version, pinned, or null. Hand it back with release. */
+    public synchronized Entry get(String key, long version) {
+        Entry e = protectedSegment.get(key);
+        if (e == null) e = probation.get(key);
+        if (e != null && e.version != version) {
+            unlist(e); // the key was stored again since
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        e.pins++; // before moving it, so unlisting does not free its pages
+        if (!e.protect) {
+            unlist(e);
+            list(e, true); // second request
+        }
+        return e;
+    }
+
+    /**
+     * Reads a chunk that missed into the cache and returns it pinned, or null if it is not admitted (then serve it
+     * straight from the store): the first request for a chunk only leaves a ghost, and a chunk that does not fit is
+     * never cached. A chunk asked for again soon after it was evicted goes back to the protected segment; the others
+     * only compete for the probation segment.
+     */
+    public Entry load(String key, long version, FileChannel ch, long offset, long length) throws IOException {
+        boolean again;
+        Entry e;
+        synchronized (this) {
+            if (budgetPages == 0) return null;
+            Boolean evicted = ghosts.remove(key);
+            if (evicted == null) {
+                ghost(key, false);
+                return null;
+            }
+            again = evicted;
+            e = reserve(key, version, length, again);
+        }
+        if (e == null) return null;
+        try {
+            e.fill(ch, offset);
+        } catch (IOException ex) {
+            release(e);
+            throw ex;
+        }
+        synchronized (this) {
+            Entry raced = protectedSegment.containsKey(key) ? protectedSegment.get(key) : probation.get(key);
+            if (raced != null) unlist(raced); // loaded by another request meanwhile; keep the newest
+            list(e, again);
+        }
+        return e;
+    }
+
+    public synchronized void release(Entry e) {
+        if (--e.pins == 0 && !e.listed) freePages(e);
+    }
+
+    public synchronized String stats() {
+        long requests = hits + misses;
+        return String.format("Chunk cache: %d hit(s), %d miss(es) (%.1f%% hits), %d chunk(s) in %d KB of %d KB, %d eviction(s)",
+                hits, misses, requests == 0 ? 0.0 : 100.0 * hits / requests, probation.size() + protectedSegment.size(),
+                (long) (probationPages + protectedPages) * PAGE_SIZE / 1024, budget() / 1024, evictions);
+    }
+
+    private int probationCap() {
+        return budgetPages * PROBATION_PERCENT / 100;
+    }
+
+    //Takes pages for a chunk; a first-time chunk only competes for probation's share, so the protected chunks survive a scan
+    private Entry reserve(String key, long version, long length, boolean again) {
+        long need = (length + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (length == 0 || need > probationCap()) return null;
+        while (!again && probationPages + need > probationCap() && evictOne(false)) {
+            //evicting
+        }
+        while (allocatedPages - freePages.size() + need > budgetPages && evictOne(true)) {
+            //pages still held by evicted chunks being served come back when they are released
+        }
+        if (allocatedPages - freePages.size() + need > budgetPages) return null;
+        ByteBuffer[] pages = new ByteBuffer[(int) need];
+        for (int i = 0; i < pages.length; i++) {
+            ByteBuffer page = freePages.poll();
+            if (page == null) {
+                page = ByteBuffer.allocateDirect(PAGE_SIZE);
+                allocatedPages++;
+            }
+            pages[i] = page;
+        }
+        return new Entry(key, version, length, pages);
+    }
+
+    //Evicts the least recently used probation chunk, or with fromProtected the protected one when probation is empty
+    private boolean evictOne(boolean fromProtected) {
+        LinkedHashMap<String, Entry> from = !probation.isEmpty() ? probation : fromProtected ? protectedSegment : null;
+        if (from == null || from.isEmpty()) return false;
+        Entry victim = from.values().iterator().next();
+        unlist(victim);
+        evictions++;
+        ghost(victim.key, true);
+        return true;
+    }
+
+    private void ghost(String key, boolean evicted) {
+        ghosts.put(key, evicted);
+        Iterator<String> oldest = ghosts.keySet().iterator();
+        while (ghosts.size() > Math.max(budgetPages, 64)) { // at most one ghost per page the budget could hold
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    //Adds e to a segment; a chunk entering protected demotes that segment's least recently used chunks to probation
+    private void list(Entry e, boolean protect) {
+        e.listed = true;
+        e.protect = protect;
+        if (!protect) {
+            probation.put(e.key, e);
+            probationPages += e.pages.length;
+            return;
+        }
+        protectedSegment.put(e.key, e);
+        protectedPages += e.pages.length;
+        int protectedCap = budgetPages - probationCap();
+        Iterator<Entry> lru = protectedSegment.values().iterator();
+        while (protectedPages > protectedCap && lru.hasNext()) {
+            Entry old = lru.next();
+            if (old == e) break;
+            lru.remove();
+            protectedPages -= old.pages.length;
+            old.protect = false;
+            probation.put(old.key, old);
+            probationPages += old.pages.length;
+        }
+    }
+
+    private void unlist(Entry e) {
+        if (!e.listed) return;
+        if (e.protect) {
+            protectedSegment.remove(e.key);
+            protectedPages -= e.pages.length;
+        } else {
+            probation.remove(e.key);
+            probationPages -= e.pages.length;
+        }
+        e.listed = false;
+        if (e.pins == 0) freePages(e);
+    }
+
+    private void freePages(Entry e) {
+        for (ByteBuffer page : e.pages) {
+            if (allocatedPages > budgetPages) {
+                allocatedPages--; // over a lowered budget: let it go
+            } else {
+                freePages.push(page);
+            }
+        }
+    }
+}
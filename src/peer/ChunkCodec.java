@@ -0,0 +1,87 @@
+package src.peer;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Per-chunk compression on the chunk wire and in the chunk store. A compressed chunk travels and is
+ * stored exactly as the owner produced it; the SEND_CHUNK / CHUNK_DATA checksum and size always
+ * describe those stored bytes, and the codec field plus the raw size say how to get the data back.
+ * The chunk store records each chunk's codec name with it. New codecs only need a name here and a
+ * case in each method.
+ */
+public class ChunkCodec {
+    public static final String RAW = "raw";
+    public static final String DEFLATE = "deflate";
+
+    /** Codecs this peer can decode, as advertised in GET_CHUNK. */
+    public static final String ACCEPTED = DEFLATE;
+
+    public static boolean isKnown(String codec) {
+        return RAW.equals(codec) || DEFLATE.equals(codec);
+    }
+
+    /** Whether a comma separated GET_CHUNK accept list includes codec; raw is always accepted. */
+    public static boolean accepts(String acceptList, String codec) {
+        if (RAW.equals(codec)) return true;
+        if (acceptList == null) return false;
+        for (String c : acceptList.split(",")) {
+            if (c.equals(codec)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Streaming decoder for one compressed chunk: feed it the stored bytes as they arrive and it hands
+     * back the raw bytes. Checks that the stream ends exactly at the announced raw size.
+     */
+    public static final class Decoder implements AutoCloseable {
+        private final Inflater inflater = new Inflater();
+        private final long rawSize;
+        private long produced;
+
+        public Decoder(String codec, long rawSize) {
+            if (!DEFLATE.equals(codec)) throw new IllegalArgumentException("Unknown codec " + codec);
+            this.rawSize = rawSize;
+        }
+
+        public interface Sink {
+            void accept(byte[] buf, int off, int len) throws IOException;
+        }
+
+        /** Decodes in[off, off+len) into sink, using out as scratch space. */
+        public void update(byte[] in, int off, int len, byte[] out, Sink sink) throws IOException {
+            inflater.setInput(in, off, len);
+            try {
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(out);
+                    if (n == 0) {
+                        if (inflater.needsInput()) break; // wait for the next piece of the stream
+                        if (inflater.needsDictionary()) throw new IOException("Compressed chunk needs a dictionary");
+                    }
+                    produced += n;
+                    if (produced > rawSize) throw new IOException("Compressed chunk is longer than announced");
+                    sink.accept(out, 0, n);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed chunk: " + e.getMessage());
+            }
+        }
+
+        /** Whether the compressed stream has ended. */
+        public boolean finished() {
+            return inflater.finished();
+        }
+
+        /** Whether the compressed stream ended and produced exactly the announced raw size. */
+        public boolean complete() {
+            return inflater.finished() && produced == rawSize;
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+}
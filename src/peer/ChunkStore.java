@@ -0,0 +1,714 @@
+package src.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Chunk store of a storage peer. Chunks are appended to a few large segment files
+ * (storage/segment-N.log) instead of getting one file each, and an in-memory index maps every
+ * chunk key to its record, so lookups, the chunk count and the bytes used never touch the
+ * directory. When a segment is full and its last write has finished it gets an index file
+ * (segment-N.idx), which startup reads instead of the segment. Only the segment still being
+ * written is scanned, and it is read header by header. Storing a key again supersedes its older
+ * record. A background compaction copies the live records out of mostly dead segments and then
+ * deletes those segments.
+ *
+ * An upload that breaks off can be parked with the bytes it got so far, so a resumed SEND_CHUNK
+ * continues writing into the same record. Parked uploads live in memory only and are abandoned
+ * after PARTIAL_TTL_MS, or when the peer restarts.
+ *
+ * Record layout: magic, header CRC, key length, codec length, payload length, then the commit
+ * block (payload CRC, raw length, sequence number, state), key, codec and payload. A record is
+ * reserved and written as PENDING, and becomes LIVE only when its commit block is written. After a
+ * crash, a record that was not committed is skipped. The sequence number decides which of two
+ * records for the same key is newer.
+ *
+ * Deleting a chunk appends a TOMBSTONE record for its key with a new sequence number, so the older
+ * records stay dead after a restart. Every record remembers the segments that may still hold older
+ * records of its key. Compaction carries a tombstone forward while one of those segments exists, and
+ * drops it once they are all gone.
+ */
+public class ChunkStore implements AutoCloseable {
+    private static final long SEGMENT_SIZE = 64L << 20; // a larger record gets a segment of its own
+    private static final double COMPACT_LIVE_RATIO = 0.5; // sealed segments with less live data than this get compacted
+    private static final long COMPACT_INTERVAL_S = 60;
+    private static final long PARTIAL_TTL_MS = 10 * 60 * 1000; // how long a broken-off upload waits to be resumed
+    private static final int RECORD_MAGIC = 0x43484b53; // "CHKS"
+    private static final int INDEX_MAGIC = 0x43484b32;  // "CHK2"
+    private static final int FIXED_LENGTH = 4 + 4 + 2 + 1 + 8;
+    private static final int COMMIT_LENGTH = 8 + 8 + 8 + 1;
+    private static final byte PENDING = 0;
+    private static final byte LIVE = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final int[] NO_SEGMENTS = {};
+
+    /** Where one committed chunk, or the tombstone of a deleted one, lives. */
+    private static final class Entry {
+        final String key;
+        final String codec;
+        final Segment segment;
+        final long offset; // of the record header
+        final int headerLength;
+        final long length;
+        final long rawLength;
+        final long crc;
+        final long seq;
+        final boolean deleted;
+        int[] shadows = NO_SEGMENTS; // ids of segments that may still hold older records of the key; guarded by the store
+
+        Entry(String key, String codec, Segment segment, long offset, int headerLength, long length, long rawLength,
+              long crc, long seq, boolean deleted) {
+            this.key = key;
+            this.codec = codec;
+            this.segment = segment;
+            this.offset = offset;
+            this.headerLength = headerLength;
+            this.length = length;
+            this.rawLength = rawLength;
+            this.crc = crc;
+            this.seq = seq;
+            this.deleted = deleted;
+        }
+
+        long recordLength() {
+            return headerLength + length;
+        }
+    }
+
+    /** One segment file; every field but the lock is guarded by the store. */
+    private static final class Segment {
+        final int id;
+        final File log;
+        final FileChannel channel;
+        long end;         // bytes reserved so far
+        long live;        // bytes of the records the index still points to
+        int writing;      // records reserved but not yet committed or abandoned
+        boolean full;     // takes no more records; sealed once writing drops to 0
+        boolean sealed;   // has its index file
+        boolean retired;  // compacted away; set under the write lock
+        List<Entry> written = new ArrayList<>(); // committed records, until the index file is written
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // readers keep the file until they are done
+
+        Segment(int id, File log) throws IOException {
+            this.id = id;
+            this.log = log;
+            this.channel = FileChannel.open(log.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        File indexFile() {
+            return new File(log.getParentFile(), String.format("segment-%08d.idx", id));
+        }
+    }
+
+    /** A chunk being stored: write exactly its length, then commit it. Closing it uncommitted abandons it. */
+    public final class Writer implements AutoCloseable {
+        private final Segment segment;
+        private final long offset;
+        private final int headerLength;
+        private final String key;
+        private final String codec;
+        private final long length;
+        private long written;
+        private boolean done;
+        private long parkedAt;
+
+        private Writer(Segment segment, long offset, int headerLength, String key, String codec, long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.headerLength = headerLength;
+            this.key = key;
+            this.codec = codec;
+            this.length = length;
+        }
+
+        /** Bytes written so far. */
+        public long written() { return written; }
+        public long length() { return length; }
+        public String codec() { return codec; }
+
+        /** Reads back up to len of the bytes already written, from pos; returns how many it read. */
+        public int readBack(byte[] b, long pos, int len) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(b, 0, (int) Math.min(len, written - pos));
+            readFully(segment.channel, bb, offset + headerLength + pos);
+            return bb.position();
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            write(ByteBuffer.wrap(b, off, len));
+        }
+
+        void write(ByteBuffer bb) throws IOException {
+            if (written + bb.remaining() > length) throw new IOException("Chunk " + key + " is longer than announced");
+            long pos = offset + headerLength + written;
+            written += bb.remaining();
+            writeFully(segment.channel, bb, pos);
+        }
+
+        /** Makes the chunk visible under its key, superseding whatever was stored there before. */
+        public void commit(long crc, long rawLength) throws IOException {
+            publish(this, crc, rawLength, null);
+        }
+
+        @Override
+        public void close() {
+            synchronized (ChunkStore.this) {
+                finish(this);
+            }
+        }
+    }
+
+    /** A stored chunk, held open for reading: its segment is not deleted until the handle is closed. */
+    public static final class Chunk implements AutoCloseable {
+        private final Entry entry;
+
+        private Chunk(Entry entry) {
+            this.entry = entry;
+        }
+
+        /** The segment file and channel holding the chunk, and where its bytes start in them. */
+        public File file() { return entry.segment.log; }
+        public FileChannel channel() { return entry.segment.channel; }
+        public long offset() { return entry.offset + entry.headerLength; }
+
+        /** Stored length and CRC32, and the codec and size they decode to. */
+        public long length() { return entry.length; }
+        public long crc() { return entry.crc; }
+        public String codec() { return entry.codec; }
+        public long rawLength() { return entry.rawLength; }
+
+        /** Changes whenever the key is stored again; a compaction copy keeps it, since the bytes are the same. */
+        public long version() { return entry.seq; }
+
+        @Override
+        public void close() {
+            entry.segment.lock.readLock().unlock();
+        }
+    }
+
+    private final File dir;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final Map<String, Entry> tombstones = new ConcurrentHashMap<>(); // keys deleted since their last record; never in index too
+    private final Map<String, Writer> partials = new ConcurrentHashMap<>(); // broken-off uploads by upload key
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private Segment active;
+    private long lastSeq;
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chunk-store-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ChunkStore(File dir) {
+        this.dir = dir;
+    }
+
+    /** Opens (creating if needed) the store in dir. */
+    public static ChunkStore open(File dir) throws IOException {
+        dir.mkdirs();
+        ChunkStore store = new ChunkStore(dir);
+        synchronized (store) {
+            store.load();
+        }
+        store.compactor.scheduleWithFixedDelay(store::maintain, COMPACT_INTERVAL_S, COMPACT_INTERVAL_S, TimeUnit.SECONDS);
+        return store;
+    }
+
+    /** Number of chunks stored. */
+    public int count() {
+        return index.size();
+    }
+
+    /** Bytes of stored chunk data, not counting superseded records waiting for compaction. */
+    public long bytesUsed() {
+        return liveBytes.get();
+    }
+
+    /** Bytes the segment files take up. */
+    public synchronized long diskBytes() {
+        long total = 0;
+        for (Segment s : segments.values()) total += s.end;
+        return total;
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /** Reserves room for a chunk of length stored bytes under key. */
+    public synchronized Writer create(String key, String codec, long length) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] c = codec.getBytes(StandardCharsets.UTF_8);
+        if (k.length > 0xFFFF || c.length > 0xFF) throw new IOException("Chunk key too long: " + key);
+        int headerLength = FIXED_LENGTH + COMMIT_LENGTH + k.length + c.length;
+        if (active.end > 0 && active.end + headerLength + length > SEGMENT_SIZE) roll();
+
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.putInt(RECORD_MAGIC).putInt(0).putShort((short) k.length).put((byte) c.length).putLong(length);
+        header.putLong(0).putLong(0).putLong(0).put(PENDING);
+        header.put(k).put(c);
+        header.putInt(4, headerCrc(header.array(), k.length + c.length));
+        header.flip();
+        //headers are written in reservation order, so a scan after a crash finds them back to back
+        long offset = active.end;
+        writeFully(active.channel, header, offset);
+        active.end += headerLength + length;
+        active.writing++;
+        return new Writer(active, offset, headerLength, key, codec, length);
+    }
+
+    /** Parks an upload that broke off under uploadKey until it is resumed; an older one parked there is abandoned. */
+    public void keepPartial(String uploadKey, Writer w) {
+        w.parkedAt = System.currentTimeMillis();
+        Writer old = partials.put(uploadKey, w);
+        if (old != null && old != w) old.close();
+    }
+
+    /** Takes the upload parked under uploadKey, or null. Commit it, park it again, or close it. */
+    public Writer takePartial(String uploadKey) {
+        return partials.remove(uploadKey);
+    }
+
+    /** Bytes received so far of the upload parked under uploadKey, 0 if there is none. */
+    public long partialLength(String uploadKey) {
+        Writer w = partials.get(uploadKey);
+        return w != null ? w.written : 0;
+    }
+
+    /** The chunk stored under key, or null. Close it once done reading. */
+    public Chunk get(String key) {
+        while (true) {
+            Entry e = index.get(key);
+            if (e == null) return null;
+            e.segment.lock.readLock().lock();
+            if (!e.segment.retired) return new Chunk(e);
+            e.segment.lock.readLock().unlock(); // compacted meanwhile; the index already points at the copy
+        }
+    }
+
+    /** Deletes the chunk stored under key. Returns false if there was none. */
+    public synchronized boolean delete(String key) throws IOException {
+        Entry old = index.get(key);
+        if (old == null) return false;
+        Writer w = create(key, "", 0);
+        try {
+            writeTombstone(w, ++lastSeq, shadowsOf(old));
+        } finally {
+            finish(w);
+        }
+        index.remove(key);
+        supersede(old);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        synchronized (this) {
+            for (Segment s : segments.values()) {
+                try { s.channel.close(); } catch (IOException ignore) {}
+            }
+        }
+    }
+
+    //Commits w's record; replacing is the entry a compaction copy stands in for, which keeps its sequence number
+    private synchronized void publish(Writer w, long crc, long rawLength, Entry replacing) throws IOException {
+        try {
+            if (w.done) throw new IOException("Chunk " + w.key + " was already committed or abandoned");
+            if (w.written != w.length) throw new IOException("Chunk " + w.key + " is shorter than announced");
+            long seq = replacing != null ? replacing.seq : ++lastSeq;
+            ByteBuffer commit = ByteBuffer.allocate(COMMIT_LENGTH);
+            commit.putLong(crc).putLong(rawLength).putLong(seq).put(LIVE).flip();
+            writeFully(w.segment.channel, commit, w.offset + FIXED_LENGTH);
+
+            Entry e = new Entry(w.key, w.codec, w.segment, w.offset, w.headerLength, w.length, rawLength, crc, seq, false);
+            w.segment.written.add(e);
+            if (replacing == null) {
+                e.shadows = shadowsOf(newest(e.key));
+                tombstones.remove(e.key);
+                supersede(index.put(e.key, e));
+                addLive(e);
+            } else if (index.replace(e.key, replacing, e)) {
+                e.shadows = shadowsOf(replacing);
+                supersede(replacing);
+                addLive(e);
+            } else {
+                //the key was stored again or deleted while copying, so the copy is dead already; whatever replaced
+                //it has to outlive the copy's segment
+                Entry newest = newest(e.key);
+                if (newest != null) newest.shadows = withSegment(newest.shadows, e.segment.id);
+            }
+        } finally {
+            finish(w);
+        }
+    }
+
+    //Commits w, reserved with length 0, as a tombstone for its key
+    private void writeTombstone(Writer w, long seq, int[] shadows) throws IOException {
+        ByteBuffer commit = ByteBuffer.allocate(COMMIT_LENGTH);
+        commit.putLong(0).putLong(0).putLong(seq).put(TOMBSTONE).flip();
+        writeFully(w.segment.channel, commit, w.offset + FIXED_LENGTH);
+        Entry t = new Entry(w.key, w.codec, w.segment, w.offset, w.headerLength, 0, 0, 0, seq, true);
+        t.shadows = shadows;
+        w.segment.written.add(t);
+        tombstones.put(t.key, t);
+    }
+
+    //The key's latest record, live or tombstone, or null
+    private Entry newest(String key) {
+        Entry e = index.get(key);
+        return e != null ? e : tombstones.get(key);
+    }
+
+    //The segments a record replacing old has to outlive: old's own and the ones old had to outlive, if they still exist
+    private int[] shadowsOf(Entry old) {
+        if (old == null) return NO_SEGMENTS;
+        int[] ids = withSegment(old.shadows, old.segment.id);
+        int n = 0;
+        for (int id : ids) {
+            if (segments.containsKey(id)) ids[n++] = id;
+        }
+        return n == ids.length ? ids : Arrays.copyOf(ids, n);
+    }
+
+    private static int[] withSegment(int[] ids, int id) {
+        for (int i : ids) {
+            if (i == id) return ids;
+        }
+        int[] more = Arrays.copyOf(ids, ids.length + 1);
+        more[ids.length] = id;
+        return more;
+    }
+
+    private void finish(Writer w) {
+        if (w.done) return;
+        w.done = true;
+        w.segment.writing--;
+        seal(w.segment);
+    }
+
+    private void addLive(Entry e) {
+        e.segment.live += e.recordLength();
+        liveBytes.addAndGet(e.length);
+    }
+
+    private void supersede(Entry old) {
+        if (old == null) return;
+        old.segment.live -= old.recordLength();
+        liveBytes.addAndGet(-old.length);
+    }
+
+    //Starts a new active segment; the old one is sealed as soon as its last write finishes
+    private void roll() throws IOException {
+        active.full = true;
+        seal(active);
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        active = new Segment(id, new File(dir, String.format("segment-%08d.log", id)));
+        segments.put(id, active);
+    }
+
+    private void seal(Segment s) {
+        if (!s.full || s.writing > 0 || s.sealed) return;
+        try {
+            writeIndex(s);
+            s.sealed = true;
+            s.written = null;
+        } catch (IOException e) {
+            //without its index the segment is scanned on the next start instead
+            System.err.println("Could not write index of " + s.log.getName() + ": " + e.getMessage());
+        }
+    }
+
+    // === LOADING ===
+
+    private void load() throws IOException {
+        File[] logs = dir.listFiles((d, n) -> n.matches("segment-\\d{8}\\.log"));
+        if (logs != null) {
+            for (File log : logs) {
+                int id = Integer.parseInt(log.getName().substring(8, 16));
+                segments.put(id, new Segment(id, log));
+            }
+        }
+        File[] indexes = dir.listFiles((d, n) -> n.matches("segment-\\d{8}\\.idx"));
+        if (indexes != null) {
+            for (File idx : indexes) {
+                //left behind by a compaction that stopped after deleting the segment
+                if (!segments.containsKey(Integer.parseInt(idx.getName().substring(8, 16)))) idx.delete();
+            }
+        }
+
+        for (Segment s : segments.values()) {
+            List<Entry> entries = readIndex(s);
+            if (entries != null) {
+                s.full = true;
+                s.sealed = true;
+                s.written = null;
+                s.end = s.channel.size();
+            } else {
+                entries = scan(s);
+            }
+            for (Entry e : entries) {
+                lastSeq = Math.max(lastSeq, e.seq);
+                Entry old = newest(e.key);
+                if (old != null && e.seq <= old.seq) {
+                    old.shadows = withSegment(old.shadows, s.id);
+                    continue;
+                }
+                e.shadows = shadowsOf(old);
+                if (old != null && old.deleted) {
+                    tombstones.remove(e.key);
+                } else if (old != null) {
+                    index.remove(e.key);
+                    supersede(old);
+                }
+                if (e.deleted) {
+                    tombstones.put(e.key, e);
+                } else {
+                    index.put(e.key, e);
+                    addLive(e);
+                }
+            }
+        }
+
+        //every segment but the last was rolled over, so seal the ones that lost their index; the last stays active
+        for (Segment s : segments.values()) {
+            if (s.sealed) continue;
+            if (s == segments.lastEntry().getValue()) {
+                if (s.end < s.channel.size()) s.channel.truncate(s.end); // drop a torn header at the tail
+                active = s;
+            } else {
+                s.end = s.channel.size();
+                s.full = true;
+                seal(s);
+            }
+        }
+        if (active == null) {
+            int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            active = new Segment(id, new File(dir, String.format("segment-%08d.log", id)));
+            segments.put(id, active);
+        }
+    }
+
+    //Reads the records of a segment that has no index, up to the first header that does not check out
+    private List<Entry> scan(Segment s) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long size = s.channel.size();
+        long pos = 0;
+        ByteBuffer fixed = ByteBuffer.allocate(FIXED_LENGTH + COMMIT_LENGTH);
+        while (pos + fixed.capacity() <= size) {
+            fixed.clear();
+            readFully(s.channel, fixed, pos);
+            fixed.flip();
+            if (fixed.getInt() != RECORD_MAGIC) break;
+            int crc = fixed.getInt();
+            int keyLength = fixed.getShort() & 0xFFFF;
+            int codecLength = fixed.get() & 0xFF;
+            long length = fixed.getLong();
+            long payloadCrc = fixed.getLong();
+            long rawLength = fixed.getLong();
+            long seq = fixed.getLong();
+            byte state = fixed.get();
+
+            int headerLength = fixed.capacity() + keyLength + codecLength;
+            if (length < 0 || pos + headerLength > size) break;
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            readFully(s.channel, header, pos);
+            if (headerCrc(header.array(), keyLength + codecLength) != crc) break;
+            if ((state == LIVE || state == TOMBSTONE) && pos + headerLength + length <= size) {
+                String key = new String(header.array(), fixed.capacity(), keyLength, StandardCharsets.UTF_8);
+                String codec = new String(header.array(), fixed.capacity() + keyLength, codecLength, StandardCharsets.UTF_8);
+                entries.add(new Entry(key, codec, s, pos, headerLength, length, rawLength, payloadCrc, seq, state == TOMBSTONE));
+            }
+            pos += headerLength + length;
+        }
+        s.end = pos; // past the file's end if the last record's payload never got written
+        s.written.addAll(entries);
+        return entries;
+    }
+
+    //The header CRC covers the lengths, key and codec, the parts that are written once when the record is reserved
+    private static int headerCrc(byte[] header, int namesLength) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 8, FIXED_LENGTH - 8);
+        crc.update(header, FIXED_LENGTH + COMMIT_LENGTH, namesLength);
+        return (int) crc.getValue();
+    }
+
+    //Index file: magic, segment length, record count, one line of fields per record, and a CRC32 of all of that
+    private void writeIndex(Segment s) throws IOException {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.io.DataOutputStream out = new java.io.DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeLong(s.channel.size());
+        out.writeInt(s.written.size());
+        for (Entry e : s.written) {
+            out.writeUTF(e.key);
+            out.writeUTF(e.codec);
+            out.writeLong(e.offset);
+            out.writeInt(e.headerLength);
+            out.writeLong(e.length);
+            out.writeLong(e.rawLength);
+            out.writeLong(e.crc);
+            out.writeLong(e.seq);
+            out.writeBoolean(e.deleted);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        //the records must be on disk before an index that vouches for them
+        s.channel.force(false);
+        File tmp = new File(dir, s.indexFile().getName() + ".tmp");
+        Files.write(tmp.toPath(), bytes.toByteArray());
+        Files.move(tmp.toPath(), s.indexFile().toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //The entries listed in s's index file, or null if it has none or the index does not match the segment
+    private List<Entry> readIndex(Segment s) {
+        File idx = s.indexFile();
+        if (!idx.exists()) return null;
+        try {
+            byte[] bytes = Files.readAllBytes(idx.toPath());
+            if (bytes.length < 4) return null;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            ByteBuffer footer = ByteBuffer.wrap(bytes, bytes.length - 4, 4);
+            if (footer.getInt() != (int) crc.getValue()) return null;
+
+            java.io.DataInputStream in = new java.io.DataInputStream(new java.io.ByteArrayInputStream(bytes, 0, bytes.length - 4));
+            if (in.readInt() != INDEX_MAGIC || in.readLong() != s.channel.size()) return null;
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(in.readUTF(), in.readUTF(), s, in.readLong(), in.readInt(), in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong(), in.readBoolean()));
+            }
+            return entries;
+        } catch (IOException corrupt) {
+            return null;
+        }
+    }
+
+    // === COMPACTION ===
+
+    //Abandons parked uploads nobody came back for, then compacts
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Writer> p : partials.entrySet()) {
+            if (now - p.getValue().parkedAt > PARTIAL_TTL_MS && partials.remove(p.getKey(), p.getValue())) {
+                p.getValue().close(); // nobody came back for it
+            }
+        }
+        try {
+            compact();
+        } catch (Exception e) {
+            System.err.println("Chunk store compaction failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the live records out of sealed segments that are mostly dead, then deletes those segments.
+     * Tombstones do not count as live; one is moved along only while an older record of its key may remain.
+     */
+    public void compact() throws IOException {
+        List<Segment> victims = new ArrayList<>();
+        synchronized (this) {
+            for (Segment s : segments.values()) {
+                if (s.sealed && !s.retired && s.live < s.end * COMPACT_LIVE_RATIO) victims.add(s);
+            }
+        }
+        for (Segment s : victims) {
+            int moved = 0;
+            ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+            for (Entry e : index.values()) {
+                if (e.segment != s) continue;
+                Writer w = create(e.key, e.codec, e.length);
+                try {
+                    long pos = e.offset + e.headerLength;
+                    long remaining = e.length;
+                    while (remaining > 0) {
+                        buf.clear();
+                        if (remaining < buf.capacity()) buf.limit((int) remaining);
+                        readFully(s.channel, buf, pos);
+                        buf.flip();
+                        pos += buf.remaining();
+                        remaining -= buf.remaining();
+                        w.write(buf);
+                    }
+                    publish(w, e.crc, e.rawLength, e);
+                    moved++;
+                } finally {
+                    w.close();
+                }
+            }
+            int kept = 0;
+            for (Entry t : tombstones.values()) {
+                if (t.segment != s) continue;
+                synchronized (this) {
+                    if (tombstones.get(t.key) != t) continue; // stored again meanwhile
+                    int[] shadows = shadowsOf(t);
+                    if (shadows.length == 1 && shadows[0] == s.id) {
+                        tombstones.remove(t.key); // every older record of the key is gone
+                        continue;
+                    }
+                    Writer w = create(t.key, "", 0);
+                    try {
+                        writeTombstone(w, t.seq, shadows);
+                    } finally {
+                        finish(w);
+                    }
+                    kept++;
+                }
+            }
+
+            long freed;
+            s.lock.writeLock().lock(); // waits for readers still streaming from it
+            try {
+                synchronized (this) {
+                    s.retired = true;
+                    segments.remove(s.id);
+                    freed = s.end;
+                }
+                s.channel.close();
+                s.log.delete();
+                s.indexFile().delete();
+            } finally {
+                s.lock.writeLock().unlock();
+            }
+            System.out.printf("Compacted %s: moved %d chunk(s) and %d tombstone(s), freed %d bytes, segments now take %d bytes%n",
+                    s.log.getName(), moved, kept, freed, diskBytes());
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer bb, long pos) throws IOException {
+        while (bb.hasRemaining()) pos += ch.write(bb, pos);
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer bb, long pos) throws IOException {
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, pos);
+            if (n < 0) throw new IOException("Segment ends inside a record");
+            pos += n;
+        }
+    }
+}
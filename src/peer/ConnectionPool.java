@@ -0,0 +1,167 @@
+package src.peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps TCP connections to other peers' chunk servers open between frames, so a file with many
+ * chunks pays for one handshake (and one slow start) per connection instead of one per chunk.
+ * A borrowed connection is used for whole frames only and then released back to its peer's idle
+ * list. A background sweep closes connections that sat idle too long or that the remote side has
+ * closed.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int IO_TIMEOUT_MS = 30000;
+    private static final long IDLE_EVICT_MS = 10000; // below the chunk server's idle timeout, so we close first
+    private static final int MAX_IDLE_PER_PEER = 8;
+    private static final long SWEEP_MS = 2000;
+
+    /** One open connection; in and out are buffered and must only be used by whoever borrowed it. */
+    public static final class Connection {
+        final InetSocketAddress remote;
+        final Socket socket;
+        public final InputStream in;
+        public final OutputStream out;
+        boolean reused;
+        long idleSince;
+
+        private Connection(InetSocketAddress remote, Socket socket) throws IOException {
+            this.remote = remote;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+
+        /** The socket's channel, for writing straight from direct buffers once out has been flushed. */
+        public SocketChannel channel() {
+            return socket.getChannel();
+        }
+
+        /** Whether this connection came out of the idle list; a failure on it may just mean the peer dropped it. */
+        public boolean isReused() {
+            return reused;
+        }
+
+        private void closeQuietly() {
+            try { socket.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    private final Map<InetSocketAddress, Deque<Connection>> idle = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "connection-pool-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ConnectionPool() {
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_MS, SWEEP_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** An idle connection to remote if one is available, otherwise a new one. */
+    public Connection borrow(InetSocketAddress remote) throws IOException {
+        Deque<Connection> conns = idle.get(remote);
+        if (conns != null) {
+            Connection c;
+            while ((c = conns.pollFirst()) != null) {
+                if (System.currentTimeMillis() - c.idleSince < IDLE_EVICT_MS && isAlive(c)) {
+                    c.reused = true;
+                    return c;
+                }
+                c.closeQuietly();
+            }
+        }
+        return open(remote);
+    }
+
+    /** A brand new connection, e.g. to retry after a reused one turned out to be stale. */
+    public Connection open(InetSocketAddress remote) throws IOException {
+        //channel-backed so an idle connection can be probed without blocking
+        Socket socket = SocketChannel.open().socket();
+        try {
+            socket.connect(remote, CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(IO_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            return new Connection(remote, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /** Hands a connection whose last frame completed cleanly back for reuse. */
+    public void release(Connection c) {
+        Deque<Connection> conns = idle.computeIfAbsent(c.remote, k -> new ConcurrentLinkedDeque<>());
+        if (c.socket.isClosed() || conns.size() >= MAX_IDLE_PER_PEER) {
+            c.closeQuietly();
+            return;
+        }
+        c.idleSince = System.currentTimeMillis();
+        conns.offerFirst(c); // most recently used first, so the extra ones age out
+    }
+
+    /** Closes a connection whose stream may be out of step after an error. */
+    public void invalidate(Connection c) {
+        c.closeQuietly();
+    }
+
+    //Health check: evict connections idle for too long or closed by the remote side
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Deque<Connection> conns : idle.values()) {
+            for (Connection c : conns.toArray(new Connection[0])) {
+                //take it out of the idle list first so no borrower can use it while it is probed
+                if (!conns.removeFirstOccurrence(c)) continue;
+                if (now - c.idleSince < IDLE_EVICT_MS && isAlive(c)) {
+                    conns.offerLast(c);
+                } else {
+                    c.closeQuietly();
+                }
+            }
+        }
+    }
+
+    //An idle connection should have nothing to read: EOF or stray bytes both mean it is unusable.
+    //The probe is one non-blocking read, cheap enough to run on every borrow.
+    private static boolean isAlive(Connection c) {
+        if (c.socket.isClosed()) return false;
+        try {
+            if (c.in.available() > 0) return false;
+            SocketChannel ch = c.socket.getChannel();
+            synchronized (ch.blockingLock()) {
+                ch.configureBlocking(false);
+                try {
+                    return ch.read(ByteBuffer.allocate(1)) == 0;
+                } finally {
+                    ch.configureBlocking(true);
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+        for (Deque<Connection> conns : idle.values()) {
+            Connection c;
+            while ((c = conns.pollFirst()) != null) c.closeQuietly();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package src.peer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Content-defined chunking (FastCDC style): a gear rolling hash over the file picks chunk boundaries
+ * from the data itself, so inserting or removing bytes only changes the chunks around the edit and
+ * identical data in different files or versions produces identical chunks. Each chunk is named by
+ * its content hash, which storage peers use as the key of their content-addressed store.
+ */
+public class ContentChunker {
+    public static final int MAX_CHUNKS = 512; // the manifest must fit the BACKUP_REQ and RESTORE_PLAN datagrams
+    private static final int MIN_AVG_SIZE = 8 * 1024;
+    private static final int MAX_AVG_SIZE = 1 << 28; // chunks are cut by 4x the average at the latest, which must fit an int
+    private static final int HASH_BYTES = 16; // truncated SHA-256, 32 hex digits
+
+    private static final long[] GEAR = new long[256];
+    static {
+        //fixed splitmix64 sequence so every peer and every run cuts the same boundaries
+        long x = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (x += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /** Chunk boundaries and content hashes of one file, in file order, and the CRC32 of the whole file. */
+    public static final class Chunks {
+        public final int avgSize;
+        public final long[] offsets;
+        public final int[] lengths;
+        public final String[] hashes;
+        public final long crc32;
+
+        Chunks(int avgSize, long[] offsets, int[] lengths, String[] hashes, long crc32) {
+            this.avgSize = avgSize;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.hashes = hashes;
+            this.crc32 = crc32;
+        }
+
+        public int count() {
+            return lengths.length;
+        }
+
+        /** "len:hash,len:hash,..." as carried in BACKUP_REQ and RESTORE_PLAN. */
+        public String manifest() {
+            StringBuilder sb = new StringBuilder(lengths.length * 42);
+            for (int i = 0; i < lengths.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(lengths[i]).append(':').append(hashes[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Splits f into content-defined chunks. The average chunk size is a power of two picked from the
+     * file size, so files of similar size chunk alike and dedupe against each other. Returns null if f
+     * is too large for MAX_CHUNKS chunks of at most MAX_AVG_SIZE on average.
+     */
+    public static Chunks chunk(File f) throws IOException {
+        long size = f.length();
+        int avg = MIN_AVG_SIZE;
+        while (avg < MAX_AVG_SIZE && size / avg > MAX_CHUNKS / 2) avg <<= 1;
+        if (size / avg > MAX_CHUNKS / 2) return null;
+        while (true) {
+            Chunks chunks = chunk(f, avg);
+            if (chunks.count() <= MAX_CHUNKS) return chunks;
+            if (avg == MAX_AVG_SIZE) return null;
+            avg <<= 1; // unlucky data: too many small chunks, go coarser
+        }
+    }
+
+    private static Chunks chunk(File f, int avg) throws IOException {
+        int min = avg / 4;
+        int max = avg * 4;
+        int bits = Integer.numberOfTrailingZeros(avg);
+        //normalized chunking: harder to cut before the average size, easier after it
+        long maskHard = (1L << (bits + 1)) - 1;
+        long maskEasy = (1L << (bits - 1)) - 1;
+
+        long[] offsets = new long[64];
+        int[] lengths = new int[offsets.length];
+        String[] hashes = new String[offsets.length];
+        int count = 0;
+
+        MessageDigest digest = newDigest();
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[1 << 20];
+        long chunkStart = 0;
+        long pos = 0;
+        long hash = 0;
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                crc.update(buf, 0, n);
+                int pending = 0; // start of the bytes in buf not yet fed to the digest
+                for (int i = 0; i < n; i++) {
+                    hash = (hash << 1) + GEAR[buf[i] & 0xFF];
+                    long len = pos + i + 1 - chunkStart;
+                    if (len < min) continue;
+                    boolean cut = len >= max || (hash & (len < avg ? maskHard : maskEasy)) == 0;
+                    if (!cut) continue;
+                    digest.update(buf, pending, i + 1 - pending);
+                    pending = i + 1;
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                        lengths = Arrays.copyOf(lengths, count * 2);
+                        hashes = Arrays.copyOf(hashes, count * 2);
+                    }
+                    offsets[count] = chunkStart;
+                    lengths[count] = (int) len;
+                    hashes[count] = hex(digest);
+                    count++;
+                    chunkStart = pos + i + 1;
+                    hash = 0;
+                }
+                digest.update(buf, pending, n - pending);
+                pos += n;
+            }
+        }
+        if (pos > chunkStart || count == 0) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count + 1);
+                lengths = Arrays.copyOf(lengths, count + 1);
+                hashes = Arrays.copyOf(hashes, count + 1);
+            }
+            offsets[count] = chunkStart;
+            lengths[count] = (int) (pos - chunkStart);
+            hashes[count] = hex(digest);
+            count++;
+        }
+        return new Chunks(avg, Arrays.copyOf(offsets, count), Arrays.copyOf(lengths, count),
+                Arrays.copyOf(hashes, count), crc.getValue());
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /** Finishes digest (resetting it) and returns the truncated content hash as hex. */
+    public static String hex(MessageDigest digest) {
+        byte[] d = digest.digest();
+        StringBuilder sb = new StringBuilder(HASH_BYTES * 2);
+        for (int i = 0; i < HASH_BYTES; i++) {
+            sb.append(Character.forDigit((d[i] >> 4) & 0xF, 16)).append(Character.forDigit(d[i] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /** Whether s looks like a content hash, so it can be used as a file name safely. */
+    public static boolean isHash(String s) {
+        if (s == null || s.length() != HASH_BYTES * 2) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0 || Character.isUpperCase(s.charAt(i))) return false;
+        }
+        return true;
+    }
+}
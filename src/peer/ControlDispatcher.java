@@ -0,0 +1,125 @@
+package src.peer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The only reader of a peer's UDP socket. Replies are matched to the request that is waiting for them
+ * by the RQ# they echo; everything else (STORE_REQ notifications, CHUNK_OKs relayed by the server, ...)
+ * goes to the handler registered for its command. Any number of requests can be outstanding at once,
+ * so several backups and restores can share the socket without taking each other's replies.
+ */
+public class ControlDispatcher implements AutoCloseable {
+    //replies that carry no RQ#: they go to every request that is waiting for one
+    private static final Set<String> UNTAGGED = Set.of("PEERS");
+
+    private static final class Pending {
+        final String[] prefixes;
+        final CompletableFuture<String> reply = new CompletableFuture<>();
+
+        Pending(String[] prefixes) {
+            this.prefixes = prefixes;
+        }
+
+        boolean accepts(String msg) {
+            for (String prefix : prefixes) {
+                if (msg.startsWith(prefix)) return true;
+            }
+            return false;
+        }
+    }
+
+    private final DatagramSocket udpSocket;
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>(); // RQ# -> request waiting for its reply
+    private final Map<String, Consumer<ControlFrame>> handlers = new ConcurrentHashMap<>(); // command -> unsolicited message handler
+    private final Thread receiver;
+
+    public ControlDispatcher(DatagramSocket udpSocket) {
+        this.udpSocket = udpSocket;
+        this.receiver = new Thread(this::receiveLoop, "udp-dispatcher");
+        this.receiver.setDaemon(true);
+    }
+
+    public void start() {
+        receiver.start();
+    }
+
+    //Handles every unsolicited message with this command; the frame is only valid until the handler returns
+    public void on(String command, Consumer<ControlFrame> handler) {
+        handlers.put(command, handler);
+    }
+
+    //Registers a request before it is sent, so its reply cannot arrive first; the future completes with the reply as text
+    public CompletableFuture<String> expect(long rq, String... prefixes) {
+        Pending p = new Pending(prefixes);
+        if (pending.putIfAbsent(rq, p) != null) throw new IllegalStateException("RQ# " + rq + " is already in use");
+        return p.reply;
+    }
+
+    //Stops waiting for rq, whether or not its reply came
+    public void forget(long rq) {
+        pending.remove(rq);
+    }
+
+    private void receiveLoop() {
+        ControlFrame frame = new ControlFrame();
+        DatagramPacket packet = new DatagramPacket(frame.buffer().array(), ControlFrame.MAX_DATAGRAM);
+        while (!udpSocket.isClosed()) {
+            try {
+                packet.setLength(ControlFrame.MAX_DATAGRAM);
+                udpSocket.receive(packet);
+            } catch (IOException e) {
+                if (!udpSocket.isClosed()) System.err.println("UDP receive failed: " + e.getMessage());
+                continue;
+            }
+            if (!frame.decode(packet.getLength())) {
+                System.out.println("Ignoring undecodable datagram of " + packet.getLength() + " bytes");
+                continue;
+            }
+            try {
+                dispatch(frame);
+            } catch (RuntimeException e) {
+                System.err.printf("Handling %s failed: %s%n", frame.command(), e);
+            }
+        }
+    }
+
+    private void dispatch(ControlFrame frame) {
+        String cmd = frame.command();
+        if (UNTAGGED.contains(cmd)) {
+            String msg = frame.toString();
+            boolean delivered = false;
+            for (Pending p : pending.values()) {
+                if (p.accepts(msg)) delivered |= p.reply.complete(msg);
+            }
+            if (delivered) return;
+        } else if (frame.size() > 1) {
+            Pending p = pending.get(frame.longAt(1));
+            if (p != null) {
+                String msg = frame.toString();
+                if (p.accepts(msg)) {
+                    p.reply.complete(msg); // a duplicate reply to a retransmission finds it already complete
+                    return;
+                }
+            }
+        }
+        Consumer<ControlFrame> handler = handlers.get(cmd);
+        if (handler != null) {
+            handler.accept(frame);
+        } else {
+            System.out.println("Received: " + frame);
+        }
+    }
+
+    @Override
+    public void close() {
+        receiver.interrupt();
+        for (Pending p : pending.values()) p.reply.cancel(false);
+    }
+}
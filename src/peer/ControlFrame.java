@@ -0,0 +1,414 @@
+package src.peer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One UDP control message, decoded in place from a reusable buffer. Both wire formats decode to
+ * the same view: token 0 is the command and tokens 1.. are its fields, exactly like the words of a
+ * text message, so a handler reads frame.intAt(3) where it used to read parts[3]. Decoding only
+ * records where each token starts; numbers are read straight from the bytes and strings are only
+ * created for the tokens a handler asks for.
+ *
+ * Binary frames (version 1) look like:
+ *   MAGIC VERSION opcode u16:fieldCount { 0 varint:length utf8-bytes | 1 zigzag-varlong }*
+ * MAGIC is not a printable character, so a text message ("HEARTBEAT 3 PeerB ...") can never be
+ * mistaken for one. Opcodes index {@link #COMMANDS}; new commands are appended, never reordered.
+ */
+public final class ControlFrame {
+    public static final byte MAGIC = (byte) 0xC5;
+    public static final byte VERSION = 1;
+    public static final int MAX_DATAGRAM = 65535;
+
+    private static final byte TEXT = 0;
+    private static final byte NUMBER = 1;
+
+    /** Every control command, in opcode order (opcode = index + 1). */
+    static final String[] COMMANDS = {
+            "REGISTER", "REGISTERED", "REGISTER-DENIED", "DE-REGISTER", "DE-REGISTERED", "DE-REGISTER-DENIED",
+            "HEARTBEAT", "LIST", "PEERS", "BACKUP_REQ", "BACKUP_PLAN", "BACKUP-DENIED", "STORE_REQ", "STORE_ACK",
+            "CHUNK_OK", "CHUNK_ERROR", "BACKUP_DONE", "RESTORE_REQ", "RESTORE_PLAN", "RESTORE_FAIL", "RESTORE_OK",
+            "BACKUP_COMMITTED", "HEARTBEAT-DENIED", "DELETE_CHUNKS", "CHUNKS_DELETED",
+    };
+    private static final byte[][] COMMAND_BYTES = new byte[COMMANDS.length][];
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) COMMAND_BYTES[i] = COMMANDS[i].getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private final ByteBuffer buf;
+    private boolean binary;
+    private String command;
+    private int count;
+    private int[] start = new int[16];
+    private int[] length = new int[16];
+    private long[] number = new long[16];
+    private byte[] type = new byte[16];
+    private byte[] scratch; // string bytes copied out of a direct buffer
+
+    public ControlFrame() {
+        this(MAX_DATAGRAM);
+    }
+
+    public ControlFrame(int capacity) {
+        this(capacity, false);
+    }
+
+    /** A direct frame can be filled straight from a DatagramChannel without an extra copy. */
+    public ControlFrame(int capacity, boolean direct) {
+        this.buf = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * The backing buffer: receive a datagram into it from index 0 (DatagramSocket into array(), or
+     * DatagramChannel.receive after clear()), then call {@link #decode(int)}.
+     */
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    /** The decoded datagram, positioned for sending it on unchanged. */
+    public ByteBuffer datagram() {
+        buf.position(0);
+        return buf;
+    }
+
+    /** Decodes the first len bytes of the buffer. Returns false for an empty, truncated or unsupported frame. */
+    public boolean decode(int len) {
+        buf.clear().limit(len);
+        count = 0;
+        command = null;
+        if (len == 0) return false;
+        binary = buf.get(0) == MAGIC;
+        return binary ? decodeBinary() : decodeText();
+    }
+
+    private boolean decodeText() {
+        int limit = buf.limit();
+        int i = 0;
+        while (i < limit) {
+            while (i < limit && isSpace(buf.get(i))) i++;
+            if (i == limit) break;
+            int s = i;
+            while (i < limit && !isSpace(buf.get(i))) i++;
+            add(TEXT, s, i - s, 0);
+        }
+        if (count == 0) return false;
+        command = knownCommand(buf, start[0], length[0]);
+        if (command == null) command = text(start[0], length[0]).toUpperCase();
+        return true;
+    }
+
+    private boolean decodeBinary() {
+        try {
+            buf.position(1);
+            if (buf.get() != VERSION) return false;
+            int opcode = buf.get() & 0xFF;
+            if (opcode < 1 || opcode > COMMANDS.length) return false;
+            command = COMMANDS[opcode - 1];
+            add(TEXT, 0, 0, 0); // token 0 is the command itself
+            int fields = buf.getShort() & 0xFFFF;
+            for (int f = 0; f < fields; f++) {
+                byte t = buf.get();
+                if (t == NUMBER) {
+                    long v = readVarLong();
+                    add(NUMBER, 0, 0, (v >>> 1) ^ -(v & 1));
+                } else if (t == TEXT) {
+                    int n = (int) readVarLong();
+                    if (n < 0 || n > buf.remaining()) return false;
+                    add(TEXT, buf.position(), n, 0);
+                    buf.position(buf.position() + n);
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        } catch (RuntimeException truncated) {
+            return false;
+        }
+    }
+
+    private long readVarLong() {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return v;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private void add(byte t, int s, int len, long n) {
+        if (count == start.length) {
+            start = Arrays.copyOf(start, count * 2);
+            length = Arrays.copyOf(length, count * 2);
+            number = Arrays.copyOf(number, count * 2);
+            type = Arrays.copyOf(type, count * 2);
+        }
+        type[count] = t;
+        start[count] = s;
+        length[count] = len;
+        number[count] = n;
+        count++;
+    }
+
+    /** Length of the decoded datagram, which occupies buffer()[0, length()). */
+    public int length() {
+        return buf.limit();
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /** The upper-case command name; a shared constant for every known command. */
+    public String command() {
+        return command;
+    }
+
+    /** Number of tokens, counting the command (the old parts.length). */
+    public int size() {
+        return count;
+    }
+
+    /** Token i as a string, or null if the frame has no such token; numbers are rendered in decimal. */
+    public String string(int i) {
+        if (i < 0 || i >= count) return null;
+        if (i == 0) return command;
+        if (type[i] == NUMBER) return Long.toString(number[i]);
+        return text(start[i], length[i]);
+    }
+
+    private String text(int off, int len) {
+        if (buf.hasArray()) return new String(buf.array(), off, len, StandardCharsets.UTF_8);
+        if (scratch == null || scratch.length < len) scratch = new byte[Math.max(len, 256)];
+        buf.get(off, scratch, 0, len);
+        return new String(scratch, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /** Token i as a number, or 0 if it is not one (like the old safeLong). */
+    public long longAt(int i) {
+        if (i < 0 || i >= count) return 0;
+        if (type[i] == NUMBER) return number[i];
+        int p = start[i];
+        int end = p + length[i];
+        boolean negative = p < end && buf.get(p) == '-';
+        if (negative) p++;
+        if (p == end || end - p > 19) return 0;
+        long v = 0;
+        for (; p < end; p++) {
+            int d = buf.get(p) - '0';
+            if (d < 0 || d > 9) return 0;
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    /** Token i as an int, or 0 if it is not one (like the old safeInt). */
+    public int intAt(int i) {
+        long v = longAt(i);
+        return v == (int) v ? (int) v : 0;
+    }
+
+    /** The frame rendered as a text message, for logging and for code that still parses text. */
+    @Override
+    public String toString() {
+        if (!binary) return text(0, buf.limit()).trim();
+        StringBuilder sb = new StringBuilder(command);
+        for (int i = 1; i < count; i++) sb.append(' ').append(string(i));
+        return sb.toString();
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    //The command table entry equal (ignoring case) to b[off, off+len), or null
+    private static String knownCommand(ByteBuffer b, int off, int len) {
+        for (int c = 0; c < COMMAND_BYTES.length; c++) {
+            byte[] name = COMMAND_BYTES[c];
+            if (name.length != len) continue;
+            int k = 0;
+            while (k < len && (b.get(off + k) == name[k] || (b.get(off + k) >= 'a' && b.get(off + k) <= 'z' && b.get(off + k) - 32 == name[k]))) k++;
+            if (k == len) return COMMANDS[c];
+        }
+        return null;
+    }
+
+    private static int opcode(String command) {
+        for (int c = 0; c < COMMANDS.length; c++) {
+            if (COMMANDS[c].equals(command)) return c + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Builds one control message in a reusable buffer, in either wire format: the same calls produce
+     * "STORE_ACK 07 file 3 12" as text or the equivalent binary frame, so a reply can always match
+     * the format the request came in.
+     */
+    public static final class Encoder {
+        private final ByteBuffer out;
+        private boolean binary;
+        private boolean flipped;
+        private int countAt;
+        private int fields;
+
+        public Encoder() {
+            this(MAX_DATAGRAM);
+        }
+
+        public Encoder(int capacity) {
+            this(capacity, false);
+        }
+
+        /** A direct encoder is written straight to a DatagramChannel with {@link #datagram()}. */
+        public Encoder(int capacity, boolean direct) {
+            this.out = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        /** Starts a new message; binary frames need a command from the table. */
+        public Encoder begin(String command, boolean binary) {
+            out.clear();
+            flipped = false;
+            this.binary = binary;
+            fields = 0;
+            if (binary) {
+                int op = opcode(command);
+                if (op < 0) throw new IllegalArgumentException("No opcode for " + command);
+                out.put(MAGIC).put(VERSION).put((byte) op);
+                countAt = out.position();
+                out.putShort((short) 0);
+            } else {
+                putChars(command);
+            }
+            return this;
+        }
+
+        public Encoder put(long n) {
+            fields++;
+            if (binary) {
+                out.put(NUMBER);
+                writeVarLong((n << 1) ^ (n >> 63));
+            } else {
+                out.put((byte) ' ');
+                putDecimal(n);
+            }
+            return this;
+        }
+
+        /** A request number, zero padded to two digits in text like the original "%02d". */
+        public Encoder putRq(long rq) {
+            if (!binary && rq >= 0 && rq < 10) {
+                fields++;
+                out.put((byte) ' ').put((byte) '0').put((byte) ('0' + rq));
+                return this;
+            }
+            return put(rq);
+        }
+
+        /** A string field; it must not contain whitespace. */
+        public Encoder put(CharSequence s) {
+            fields++;
+            if (binary) {
+                out.put(TEXT);
+                if (isAscii(s)) {
+                    writeVarLong(s.length());
+                    putChars(s);
+                } else {
+                    byte[] b = s.toString().getBytes(StandardCharsets.UTF_8);
+                    writeVarLong(b.length);
+                    out.put(b);
+                }
+            } else {
+                out.put((byte) ' ');
+                if (isAscii(s)) putChars(s); else out.put(s.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return this;
+        }
+
+        /** Each space separated word of s as its own field, e.g. "REASON: NotRegistered". */
+        public Encoder putWords(String s) {
+            int i = 0;
+            while (i < s.length()) {
+                int end = s.indexOf(' ', i);
+                if (end < 0) end = s.length();
+                if (end > i) put(s.substring(i, end));
+                i = end + 1;
+            }
+            return this;
+        }
+
+        /** Finishes the message; its bytes are array()[0, length()). */
+        public Encoder end() {
+            if (binary && !flipped) out.putShort(countAt, (short) fields);
+            return this;
+        }
+
+        /** Finishes the message and returns it ready for DatagramChannel.send; begin() starts the next one. */
+        public ByteBuffer datagram() {
+            end();
+            if (!flipped) {
+                out.flip();
+                flipped = true;
+            }
+            out.position(0);
+            return out;
+        }
+
+        /** The backing array of a heap encoder. */
+        public byte[] array() {
+            return out.array();
+        }
+
+        public int length() {
+            return flipped ? out.limit() : out.position();
+        }
+
+        @Override
+        public String toString() {
+            int n = length();
+            ControlFrame f = new ControlFrame(n);
+            out.get(0, f.buf.array(), 0, n);
+            return f.decode(n) ? f.toString() : "";
+        }
+
+        private void putChars(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) out.put((byte) s.charAt(i));
+        }
+
+        private void putDecimal(long n) {
+            if (n == Long.MIN_VALUE) {
+                putChars(Long.toString(n));
+                return;
+            }
+            if (n < 0) {
+                out.put((byte) '-');
+                n = -n;
+            }
+            int digits = 1;
+            for (long p = 10; digits < 19 && p <= n; p *= 10) digits++;
+            int end = out.position() + digits;
+            for (int i = end - 1; i >= end - digits; i--) {
+                out.put(i, (byte) ('0' + n % 10));
+                n /= 10;
+            }
+            out.position(end);
+        }
+
+        private void writeVarLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                out.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.put((byte) v);
+        }
+
+        private static boolean isAscii(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) >= 0x80) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -8,8 +8,9 @@ import java.time.Instant;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
 
 public class HeartbeatService implements AutoCloseable {
     private final String name;
@@ -21,16 +22,22 @@ public class HeartbeatService implements AutoCloseable {
         t.setDaemon(true);
         return t;
     });
-    private final AtomicInteger rqCounter;
+    private final AtomicLong rqCounter;
     private final IntSupplier chunkCountSupplier;
+    private final LongSupplier storedBytesSupplier;
+    //only the scheduler thread sends, so one frame buffer and packet serve every heartbeat
+    private final ControlFrame.Encoder encoder = new ControlFrame.Encoder(512);
+    private final DatagramPacket packet;
 
-    public HeartbeatService(String name, DatagramSocket udpSocket, String serverHost, int serverUdpPort, int heartbeatIntervalSeconds, AtomicInteger rqCounter, IntSupplier chunkCountSupplier) {
+    public HeartbeatService(String name, DatagramSocket udpSocket, String serverHost, int serverUdpPort, int heartbeatIntervalSeconds, AtomicLong rqCounter, IntSupplier chunkCountSupplier, LongSupplier storedBytesSupplier) {
         this.name = name;
         this.udpSocket = udpSocket;
         this.serverAddr = new InetSocketAddress(serverHost, serverUdpPort);
         this.heartbeatIntervalSeconds = heartbeatIntervalSeconds;
         this.rqCounter = rqCounter;
         this.chunkCountSupplier = chunkCountSupplier;
+        this.storedBytesSupplier = storedBytesSupplier;
+        this.packet = new DatagramPacket(new byte[0], 0, serverAddr);
     }
 
     public void start() {
@@ -39,13 +46,14 @@ public class HeartbeatService implements AutoCloseable {
 
     private void sendHeartbeatSafely() {
         try {
-            int rq = rqCounter.incrementAndGet();
+            long rq = rqCounter.incrementAndGet();
             int numChunks = chunkCountSupplier.getAsInt();
+            long storedBytes = storedBytesSupplier.getAsLong();
             long ts = Instant.now().toEpochMilli();
-            String hb = String.format("HEARTBEAT %d %s %d %d", rq, name, numChunks, ts);
-            byte[] data = hb.getBytes();
-            udpSocket.send(new DatagramPacket(data, data.length, serverAddr));
-            System.out.println("[HEARTBEAT] sent: " + hb);
+            encoder.begin("HEARTBEAT", true).put(rq).put(name).put(numChunks).put(ts).put(storedBytes).end();
+            packet.setData(encoder.array(), 0, encoder.length());
+            udpSocket.send(packet);
+            System.out.printf("[HEARTBEAT] sent: rq=%d chunks=%d bytes=%d ts=%d%n", rq, numChunks, storedBytes, ts);
         } catch (IOException e) {
             System.err.println("[HEARTBEAT] failed: " + e.getMessage());
         }
@@ -1,6 +1,7 @@
 package src.peer;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 public class PeerData {
     private String name;
@@ -26,4 +27,5 @@ public class PeerData {
     public int getTcpPort() { return tcpPort; }
     public String getRole() { return role; }
     public String getStorage() { return storage; }
+    public InetSocketAddress getUdpAddress() { return new InetSocketAddress(ip, udpPort); }
 }
\ No newline at end of file
@@ -1,53 +1,121 @@
 package src.peer;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.Scanner;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 public class PeerUDP{
-    private static java.util.Map<String, String> expectedStoreReqs = new java.util.concurrent.ConcurrentHashMap<>(); // "fileName:chunkId" -> "ownerName"
-    private static java.util.Map<String, PeerData> knownPeers = new java.util.HashMap<>();
+    private static java.util.Map<String, PeerData> knownPeers = new java.util.concurrent.ConcurrentHashMap<>();
+    private static final int MAX_PARALLEL_TRANSFERS = 8; // concurrent TCP chunk fetches per restore
+    private static final int FETCH_ATTEMPTS = 3; // tries per replica for a chunk whose transfer keeps breaking off
+    private static final int BACKUP_ROUNDS = 3; // passes over the chunks still unacknowledged before a backup gives up
+    private static final int BACKUP_RETRY_DELAY_MS = 1000; // doubled after every round
+    //chunk server: handler threads, connections waiting for one, chunk transfers moving data at once, socket read timeout
+    private static final int CHUNK_SERVER_THREADS = 32;
+    private static final int CHUNK_SERVER_BACKLOG = 64;
+    private static final int MAX_CONCURRENT_TRANSFERS = 16;
+    private static final int CHUNK_IO_TIMEOUT_MS = 30000;
+    private static final Semaphore transferSlots = new Semaphore(MAX_CONCURRENT_TRANSFERS);
+    private static final ConnectionPool connections = new ConnectionPool(); // kept-alive chunk server connections to other peers
+    private static volatile int compressionLevel = Deflater.BEST_SPEED; // Deflater level for outgoing chunks, NO_COMPRESSION = off
+    private static final ExecutorService storeAcks = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "store-ack-sender");
+        t.setDaemon(true);
+        return t;
+    });
+    //backups and restores run here so several can be in flight while the prompt takes the next command
+    private static final ExecutorService operations = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "peer-operation");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final AtomicBoolean rejoining = new AtomicBoolean();
+    private static final java.util.Set<String> runningOperations = java.util.concurrent.ConcurrentHashMap.newKeySet();
+    private static ControlDispatcher dispatcher; // sole reader of the UDP socket, hands each reply to the request waiting for it
+    private static ChunkStore chunkStore; // chunks this peer stores for others, in segment files under storage/
+    private static final int DEFAULT_CACHE_MB = 64;
+    private static final ChunkCache chunkCache = new ChunkCache(DEFAULT_CACHE_MB << 20); // off-heap copies of hot chunks for GET_CHUNK
+
+    private interface Operation {
+        void run() throws IOException;
+    }
     
     public static void main(String[] args) throws IOException{
         Scanner sc = new Scanner(System.in);
         DatagramSocket ds = new DatagramSocket();
         InetAddress ip = InetAddress.getLocalHost();
+        dispatcher = new ControlDispatcher(ds);
+        //STORE_REQ: the server announces a chunk some owner is about to send us; the chunk's own frame says all we need
+        dispatcher.on("STORE_REQ", frame -> {});
+        //the owner already counts acks in-band on its chunk streams; the copies the server relays only matter when they are errors
+        dispatcher.on("CHUNK_OK", frame -> {});
+        dispatcher.on("CHUNK_ERROR", frame -> System.out.println("Server relayed: " + frame));
+        dispatcher.start();
         byte buf[] = null;
         int serverPort = 1234;
         String serverHost = ip.getHostAddress(); // Assuming server is on localhost
         HeartbeatService heartbeatService = null;
 
         //Create TCP server socket with random port 0 means it will auto assign an available port
-        ServerSocket tcpServerSocket = new ServerSocket(0);
+        //opened through a channel so accepted sockets can hand chunk files to FileChannel.transferTo
+        ServerSocket tcpServerSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
         int tcpPort = tcpServerSocket.getLocalPort();
         System.out.println("TCP server will use port: " + tcpPort);
 
         //Send registration message to server
         System.out.println("Write your name:");
         String name = sc.nextLine().trim();
-        sendRegistration(ds, ip, serverPort, name, "BOTH", tcpPort, 1024);
-        
-        //Receive server response
-        byte[] receiveBuffer = new byte[65535];
-        DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-        ds.receive(receivePacket);
-        String response = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
+        String response = sendRegistration(ds, ip, serverPort, name, "BOTH", tcpPort, 1024);
         System.out.println("Server response: " + response);
         
         //Responses you can get from the server
-        if (response.startsWith("REGISTER-DENIED")){
+        if (response == null) {
+            System.out.println("Server did not answer the registration. Exiting.");
+            ds.close();
+            sc.close();
+            return;
+        } else if (response.startsWith("REGISTER-DENIED")){
             System.out.println("Registration denied by server. Exiting.");
             ds.close();
             sc.close();
@@ -56,24 +124,29 @@ public class PeerUDP{
             System.out.println("Registration accepted by server.");
         }
 
-        //heartbeat integration
-        IntSupplier chunkCountSupplier = () -> {
-            File storageDir = new File("storage");
-            if (storageDir.exists() && storageDir.isDirectory()) {
-                String[] files = storageDir.list();
-                return files != null ? files.length : 0;
-            }
-            return 0;
-        };
+        chunkStore = ChunkStore.open(new File("storage"));
+        System.out.printf("Chunk store: %d chunk(s), %d bytes in %d segment(s) taking %d bytes%n",
+                chunkStore.count(), chunkStore.bytesUsed(), chunkStore.segmentCount(), chunkStore.diskBytes());
+
+        //DELETE_CHUNKS: no backup refers to these chunks any more
+        dispatcher.on("DELETE_CHUNKS", frame -> deleteChunks(frame, ds, ip, serverPort));
+
+        //heartbeat integration: the store keeps its chunk count and live bytes, so a beat costs nothing however many chunks it holds
+        IntSupplier chunkCountSupplier = chunkStore::count;
+        LongSupplier storedBytesSupplier = chunkStore::bytesUsed;
         int heartbeatInterval = 60; // sending heartbeat every 60 secs. used to be 10 but too much spam in console.
-        heartbeatService = new HeartbeatService(name, ds, serverHost, serverPort, heartbeatInterval, rqCounter, chunkCountSupplier);
+        heartbeatService = new HeartbeatService(name, ds, serverHost, serverPort, heartbeatInterval, rqCounter, chunkCountSupplier, storedBytesSupplier);
         heartbeatService.start();
         System.out.println("Heartbeat service started.");
+        //a server that timed this peer out (a partition, a suspended machine) answers its heartbeats with HEARTBEAT-DENIED
+        dispatcher.on("HEARTBEAT-DENIED", frame -> rejoin(ds, ip, serverPort, name, tcpPort));
         System.out.println("Write messages to send to server (type 'bye' to exit):");
         System.out.println("Type 'de' to deregister.");
         System.out.println("Type 'list' to see registered peers.");
         System.out.println("Type 'backup filename' to request backup plan and send chunk.");
         System.out.println("Type 'restore filename' to restore a file.");
+        System.out.println("Type 'compress <0-9|off>' to set the chunk compression level.");
+        System.out.println("Type 'cache [MB|off]' to see the chunk cache statistics or set its memory budget.");
 
         //Start TCP chunk server to receive SEND_CHUNK frames if this peer is chosen as storage
         startTcpChunkServer(tcpServerSocket, ds, ip, serverPort, name);
@@ -83,354 +156,943 @@ public class PeerUDP{
 
             if (inp.equalsIgnoreCase("de")){
                 //send de-registration and exit
+                finishOperations();
                 sendDeregistration(ds, ip, serverPort, name);
                 break;
             }
 
             if (inp.equalsIgnoreCase("list")) {
-                byte[] data = "LIST".getBytes();
-                DatagramPacket pkt = new DatagramPacket(data, data.length, ip, serverPort);
-                ds.send(pkt);
-                byte[] bufList = new byte[4096];
-                DatagramPacket resp = new DatagramPacket(bufList, bufList.length);
-                ds.receive(resp);
-                String listResp = new String(resp.getData(), 0, resp.getLength()).trim();
+                String listResp = refreshKnownPeers(ds, ip, serverPort);
                 System.out.println("Server: " + listResp);
-                
-                //Parse and store peer info: PEERS count name ip udp tcp ...
-                String[] listParts = listResp.split("\\s+");
-                if (listParts.length > 1 && "PEERS".equals(listParts[0])) {
-                    int count = safeInt(listParts[1]);
-                    int idx = 2;
-                    for (int i = 0; i < count && idx + 3 < listParts.length; i++) {
-                        String pName = listParts[idx++];
-                        String pIp = listParts[idx++];
-                        int pUdp = safeInt(listParts[idx++]);
-                        int pTcp = safeInt(listParts[idx++]);
-                        try {
-                            knownPeers.put(pName, new PeerData(pName, "UNKNOWN", InetAddress.getByName(pIp), pUdp, pTcp, "0"));
-                        } catch (Exception e) {}
-                    }
+                continue;
+            }
+
+            if (inp.toLowerCase().startsWith("compress")) {
+                //compress <level|off>: Deflater level used for chunks sent from now on; chunks that do not shrink always go raw
+                String arg = inp.substring(8).trim();
+                int level = arg.equalsIgnoreCase("off") ? Deflater.NO_COMPRESSION : (arg.matches("\\d") ? safeInt(arg) : -1);
+                if (level < 0) {
+                    System.out.println("Usage: compress <0-9|off>");
+                } else {
+                    compressionLevel = level;
+                    System.out.println(level == Deflater.NO_COMPRESSION ? "Chunk compression off." : "Chunk compression level " + level + ".");
+                }
+                continue;
+            }
+
+            if (inp.toLowerCase().startsWith("cache")) {
+                //cache [MB|off]: statistics of the off-heap read cache for GET_CHUNK, or a new memory budget for it
+                String arg = inp.substring(5).trim();
+                if (arg.equalsIgnoreCase("off")) {
+                    chunkCache.setBudget(0);
+                } else if (arg.matches("\\d+")) {
+                    chunkCache.setBudget(safeLong(arg) << 20);
+                } else if (!arg.isEmpty()) {
+                    System.out.println("Usage: cache [MB|off]");
+                    continue;
                 }
+                System.out.println(chunkCache.stats());
                 continue;
             }
 
             if(inp.toLowerCase().startsWith("backup")){
-                File f = new File(inp.substring(7).trim());
-                if (!f.exists() || !f.isFile()) {
-                    System.out.println("File does not exist.");
+                String arg = inp.substring(6).trim();
+                submit("backup " + arg, () -> backup(arg, ds, ip, serverPort));
+                continue;
+            }
+
+            if (inp.toLowerCase().startsWith("restore")) {
+                String fileName = inp.substring(7).trim();
+                if (fileName.isEmpty()) {
+                    System.out.println("Usage: restore <filename>");
                     continue;
                 }
+                submit("restore " + fileName, () -> restore(fileName, ds, ip, serverPort));
+                continue;
+            }
+
+            if (inp.equalsIgnoreCase("bye")) {
+                finishOperations();
+                break;
+            }
+
+            buf = inp.getBytes();
+            DatagramPacket DpSend = new DatagramPacket(buf, buf.length, ip, serverPort);
+            ds.send(DpSend);
+        }
+        sc.close();
+        ds.close();
+        dispatcher.close();
+        if (heartbeatService != null) {
+            heartbeatService.close();
+            System.out.println("Heartbeat service stopped.");
+        }
+    }
+
+    //Runs a backup or restore in the background; the same command cannot run twice at once
+    private static void submit(String description, Operation op) {
+        if (!runningOperations.add(description)) {
+            System.out.println("'" + description + "' is already running.");
+            return;
+        }
+        operations.execute(() -> {
+            try {
+                op.run();
+            } catch (IOException | RuntimeException e) {
+                System.err.printf("'%s' failed: %s%n", description, e);
+            } finally {
+                runningOperations.remove(description);
+            }
+        });
+    }
 
-                long size = f.length();
-                long sum = crc32file(f);
-                String req = formatBackupReq(f.getName(), size, sum);
-                byte[] data = req.getBytes();
-                ds.send(new DatagramPacket(data, data.length, ip, serverPort));
+    //Lets every backup and restore in flight finish before the peer deregisters or exits
+    private static void finishOperations() {
+        operations.shutdown();
+        if (!runningOperations.isEmpty()) {
+            System.out.println("Waiting for " + runningOperations.size() + " running operation(s) to finish...");
+        }
+        try {
+            operations.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                byte[] b = new byte[2048];
-                DatagramPacket resp = new DatagramPacket(b, b.length);
-                ds.receive(resp);
-                String plan = new String (resp.getData(), 0, resp.getLength()).trim();
-                System.out.println("Server response: " + plan);
+    //backup <file> [replicas] [fixed]: content-defined chunks by default, so a re-backup only sends what changed
+    private static void backup(String arg, DatagramSocket ds, InetAddress ip, int serverPort) throws IOException {
+        int replicas = 0; // 0 = let the server use its default
+        boolean cdc = true;
+        int lastSpace = arg.lastIndexOf(' ');
+        String mode = lastSpace > 0 ? arg.substring(lastSpace + 1) : "";
+        if (mode.equalsIgnoreCase("fixed") || mode.equalsIgnoreCase("cdc")) {
+            cdc = mode.equalsIgnoreCase("cdc");
+            arg = arg.substring(0, lastSpace).trim();
+            lastSpace = arg.lastIndexOf(' ');
+        }
+        if (lastSpace > 0 && arg.substring(lastSpace + 1).matches("\\d+")) {
+            replicas = safeInt(arg.substring(lastSpace + 1));
+            arg = arg.substring(0, lastSpace).trim();
+        }
+        File f = new File(arg);
+        if (!f.exists() || !f.isFile()) {
+            System.out.println("File does not exist.");
+            return;
+        }
 
-                if (!plan.startsWith("BACKUP_PLAN")) {
+        long size = f.length();
+        //content-defined chunks: the server places each chunk by its hash and skips ones a peer already holds,
+        //including every chunk left unchanged since the file's last backup. The chunking pass also yields the
+        //file's CRC32; a fixed-size backup only learns it while sending, so it goes out with BACKUP_DONE (0 here)
+        ContentChunker.Chunks chunks = cdc ? ContentChunker.chunk(f) : null;
+        if (cdc && chunks == null) {
+            System.out.println("File is too large for content-defined chunks, backing it up in fixed-size chunks.");
+            cdc = false;
+        }
+        //an unfinished backup of the same, unchanged file is resumed with the plan and upload id it was given
+        String identity = size + " " + f.lastModified() + " " + (cdc ? "cdc" : "fixed") + " " + replicas;
+        for (int attempt = 1; attempt <= 2; attempt++) {
+            TransferJournal journal = TransferJournal.find("backup", f.getName(), identity);
+            if (journal != null && journal.plan() == null) {
+                journal.delete();
+                journal = null;
+            }
+            if (sendBackup(f, cdc, replicas, chunks, identity, journal, ds, ip, serverPort)) return;
+            System.out.println("Starting the backup over with a new plan.");
+        }
+    }
+
+    //Sends the chunks of one backup plan, either a new one or the one journal recorded, and commits it. Returns false
+    //only if a resumed upload was refused because the server no longer has it, so the caller can start over
+    private static boolean sendBackup(File f, boolean cdc, int replicas, ContentChunker.Chunks chunks, String identity,
+                                      TransferJournal journal, DatagramSocket ds, InetAddress ip, int serverPort) throws IOException {
+        long size = f.length();
+        boolean resumed = journal != null;
+        String plan;
+        if (resumed) {
+            plan = journal.plan();
+            System.out.printf("Resuming the unfinished backup of %s (%d chunk transfer(s) already acknowledged)%n",
+                    f.getName(), journal.doneCount());
+        } else {
+            long rqReq = nextRq();
+            ControlFrame.Encoder req = encodeBackupReq(rqReq, f.getName(), size, chunks != null ? chunks.crc32 : 0);
+            if (replicas > 0 || cdc) req.put(replicas);
+            if (cdc) req.put("CDC").put(chunks.manifest());
+
+            plan = request(ds, ip, serverPort, req, rqReq, "BACKUP_PLAN", "BACKUP-DENIED");
+            System.out.println("Server response: " + plan);
+
+            if (plan == null || !plan.startsWith("BACKUP_PLAN")) {
+                return true;
+            }
+        }
+        //Format: BACKUP_PLAN RQ# File_Name [PeerB|PeerC,PeerC|PeerD] Chunk_Size Num_Chunks Upload_ID (one entry per chunk, replicas split by '|')
+        String[] p = plan.split("\\s+");
+
+        if (p.length < 5) { System.out.println("Malformed BACKUP_PLAN"); return true; }
+
+        String fileName = p[2];
+        String peerListToken = p[3];
+        long chunkSize = safeLong(p[4]);
+
+        //peer list: [PeerB|PeerC,PeerC|PeerD] for example
+        String peerListContent = peerListToken.substring(1, peerListToken.length()-1); // remove [ ]
+        String[] peerNames = peerListContent.split(",\\s*");
+
+        if (peerNames.length == 0) { System.out.println("No peers in BACKUP_PLAN"); return true; }
+
+        int numChunks = p.length > 5 ? safeInt(p[5]) : 1;
+        String uploadId = p.length > 6 ? p[6] : "0";
+        if (chunkSize <= 0 || numChunks <= 0) { System.out.println("Malformed BACKUP_PLAN"); return true; }
+        //one replica group per chunk, or the chunks would go to peers the server never placed them on
+        if (peerNames.length != numChunks) {
+            System.out.printf("Malformed BACKUP_PLAN (%d replica groups for %d chunks)%n", peerNames.length, numChunks);
+            return true;
+        }
+
+        long[] offsets = new long[numChunks];
+        int[] lengths = new int[numChunks];
+        String[] hashes = null;
+        if (p.length > 7 && "CDC".equals(p[7])) {
+            if (chunks == null || chunks.count() != numChunks) { System.out.println("BACKUP_PLAN does not match the chunk manifest"); return true; }
+            offsets = chunks.offsets;
+            lengths = chunks.lengths;
+            hashes = chunks.hashes;
+        } else {
+            for (int i = 0; i < numChunks; i++) {
+                offsets[i] = (long) i * chunkSize;
+                lengths[i] = (int) Math.max(0, Math.min(chunkSize, size - offsets[i]));
+            }
+        }
+        //the plan is journaled before the first chunk goes out, so a backup cut short anywhere after this can be resumed
+        if (!resumed) journal = TransferJournal.start("backup", f.getName(), identity, plan);
+
+        //resolve every storage peer in the plan, fetching the peer list once if needed.
+        //A replica marked '=' already holds that content, and one the journal lists got its copy in an earlier
+        //attempt, so both count as acked and are not sent.
+        PeerData[][] targets = new PeerData[numChunks][];
+        AtomicIntegerArray acks = new AtomicIntegerArray(numChunks);
+        boolean resolved = true;
+        int totalSends = 0;
+        int journaled = 0;
+        java.util.Set<String> distinctPeers = new java.util.HashSet<>();
+        java.util.Map<String, PeerData> peerByName = new java.util.HashMap<>();
+        for (int i = 0; i < numChunks && resolved; i++) {
+            String[] replicaNames = peerNames[i].split("\\|");
+            targets[i] = new PeerData[replicaNames.length];
+            for (int r = 0; r < replicaNames.length && resolved; r++) {
+                if (replicaNames[r].startsWith("=")) {
+                    replicaNames[r] = replicaNames[r].substring(1);
+                    acks.incrementAndGet(i);
+                    distinctPeers.add(replicaNames[r]);
+                    continue;
+                }
+                if (journal.isDone(i, replicaNames[r])) {
+                    acks.incrementAndGet(i);
+                    distinctPeers.add(replicaNames[r]);
+                    journaled++;
                     continue;
                 }
-                //Format: BACKUP_PLAN RQ# File_Name [PeerB, PeerC] Chunk_Size
-                String[] p = plan.split("\\s+");
-
-                if (p.length < 5) { System.out.println("Malformed BACKUP_PLAN"); continue; }
-
-                String fileName = p[2];
-                String peerListToken = p[3];
-                int chunkSize = safeInt(p[4]);
-                
-                //peer list: [PeerB, PeerC] for example
-                String peerListContent = peerListToken.substring(1, peerListToken.length()-1); // remove [ ]
-                String[] peerNames = peerListContent.split(",\\s*");
-                
-                if (peerNames.length == 0) { System.out.println("No peers in BACKUP_PLAN"); continue; }
-                
-                String targetPeerName = peerNames[0];
-                
-                //look for peers info from knownPeers registry
-                PeerData targetPeer = knownPeers.get(targetPeerName);
+                PeerData targetPeer = resolvePeer(replicaNames[r], ds, ip, serverPort);
                 if (targetPeer == null) {
-                    byte[] listData = "LIST".getBytes();
-                    ds.send(new DatagramPacket(listData, listData.length, ip, serverPort));
-                    byte[] listBuf = new byte[4096];
-                    DatagramPacket listResp = new DatagramPacket(listBuf, listBuf.length);
-                    ds.receive(listResp);
-                    String listResult = new String(listResp.getData(), 0, listResp.getLength()).trim();
-                    
-                    String[] listParts = listResult.split("\\s+");
-                    if (listParts.length > 1 && "PEERS".equals(listParts[0])) {
-                        int count = safeInt(listParts[1]);
-                        int idx = 2;
-                        for (int i = 0; i < count && idx + 3 < listParts.length; i++) {
-                            String pName = listParts[idx++];
-                            String pIp = listParts[idx++];
-                            int pUdp = safeInt(listParts[idx++]);
-                            int pTcp = safeInt(listParts[idx++]);
-                            try {
-                                knownPeers.put(pName, new PeerData(pName, "UNKNOWN", InetAddress.getByName(pIp), pUdp, pTcp, "0"));
-                            } catch (Exception e) {}
-                        }
-                    }
-                    
-                    // Retry lookup
-                    targetPeer = knownPeers.get(targetPeerName);
-                    if (targetPeer == null) {
-                        System.out.println("Peer " + targetPeerName + " still not found after fetching list.");
-                        continue;
-                    }
+                    System.out.println("Peer " + replicaNames[r] + " still not found after fetching list.");
+                    resolved = false;
+                    continue;
                 }
-                
-                String targetIp = targetPeer.getIp().getHostAddress();
-                int targetTcp = targetPeer.getTcpPort();
-
-                int chunkTransferSize = (int)Math.min(size, chunkSize);
-                System.out.printf("Sending chunk to storage peer %s at %s:%d (chunkSize=%d of fileSize=%d)\n", targetPeerName,
-                 targetIp, targetTcp, chunkTransferSize, size);
-
-                //Single chunk SEND_CHUNK
-                try (Socket sock = new Socket(targetIp, targetTcp);
-                     OutputStream out = sock.getOutputStream();
-                     FileInputStream fis = new FileInputStream(f)) {
-                    int rqSend = nextRq();
-                    String header = String.format("SEND_CHUNK %02d %s %d %d %d\n", rqSend, fileName, 0, chunkTransferSize, sum);
-                    out.write(header.getBytes());
-
-                    //send only chunkTransferSize bytes
-                    byte[] sendBuf = new byte[8192];
-                    int remaining = chunkTransferSize;
-
-                    while (remaining > 0) {
-                        int n = fis.read(sendBuf, 0, Math.min(sendBuf.length, remaining));
-                        if (n == -1) break;
-                        out.write(sendBuf, 0, n);
-                        remaining -= n;
-                    }
-                    out.flush();
-                    System.out.println("Chunk sent. Waiting for CHUNK_OK");
-                } catch (IOException e) {
-                    System.err.println("Chunk send failed: " + e.getMessage());
+                targets[i][r] = targetPeer;
+                distinctPeers.add(replicaNames[r]);
+                peerByName.put(targetPeer.getName(), targetPeer);
+                totalSends++;
+            }
+        }
+        if (!resolved) {
+            journal.close();
+            return true;
+        }
+
+        int alreadyStored = 0;
+        for (int i = 0; i < numChunks; i++) alreadyStored += acks.get(i);
+        System.out.printf("Sending %d chunk(s) of up to %d bytes (fileSize=%d) as %d transfer(s) to %d storage peer(s)%s%n",
+                numChunks, chunkSize, size, totalSends, distinctPeers.size(),
+                alreadyStored > 0 ? ", " + (alreadyStored - journaled) + " replica(s) already stored"
+                        + (journaled > 0 ? ", " + journaled + " sent before" : "") : "");
+
+        //one pass over the file feeds a pipelined stream per storage peer, acked in-band on the same connection.
+        //A round that leaves transfers unacknowledged is followed by another for just those, each stream first
+        //asking its peer how much of the chunk it was sending when it broke off was kept
+        long fileChecksum = chunks != null ? chunks.crc32 : -1;
+        int okCount = 0;
+        for (int round = 1; round <= BACKUP_ROUNDS; round++) {
+            java.util.Map<String, List<Integer>> chunksByPeer = new java.util.LinkedHashMap<>();
+            for (int i = 0; i < numChunks; i++) {
+                for (PeerData target : targets[i]) {
+                    if (target == null || journal.isDone(i, target.getName())) continue;
+                    chunksByPeer.computeIfAbsent(target.getName(), k -> new ArrayList<>()).add(i);
                 }
-                //Wait short time for CHUNK_OK or CHUNK_ERROR 
-                boolean chunkOk = false;
+            }
+            if (chunksByPeer.isEmpty()) break;
+            if (round > 1) {
+                int left = 0;
+                for (List<Integer> ids : chunksByPeer.values()) left += ids.size();
+                System.out.printf("Retrying %d unacknowledged transfer(s) (round %d/%d)%n", left, round, BACKUP_ROUNDS);
                 try {
-                    ds.setSoTimeout(2000);
-                    byte[] ackBuf = new byte[512];
-                    DatagramPacket ackPkt = new DatagramPacket(ackBuf, ackBuf.length);
-                    ds.receive(ackPkt);
-                    String ack = new String(ackPkt.getData(), 0, ackPkt.getLength()).trim();
-                    System.out.println("Ack: " + ack);
-                    if (ack.startsWith("CHUNK_OK")) {
-                        chunkOk = true;
-                    }
-                } catch (Exception timeout) {
-                    System.out.println("No CHUNK_OK received within timeout (continuing)." );
-                } finally {
-                    ds.setSoTimeout(0);
-                }
-                
-                //If all chunks successful send a backup_done
-                if (chunkOk) {
-                    int rqDone = nextRq();
-                    String backupDone = String.format("BACKUP_DONE %02d %s", rqDone, f.getName());
-                    byte[] doneData = backupDone.getBytes();
-                    ds.send(new DatagramPacket(doneData, doneData.length, ip, serverPort));
-                    System.out.println("Sent BACKUP_DONE to server");
+                    Thread.sleep(BACKUP_RETRY_DELAY_MS << (round - 2));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
-                continue;
             }
+            BackupPipeline pipeline = new BackupPipeline(f, fileName, uploadId, offsets, lengths, hashes, connections, PeerUDP::nextRq);
+            for (java.util.Map.Entry<String, List<Integer>> e : chunksByPeer.entrySet()) {
+                pipeline.addTarget(peerByName.get(e.getKey()), e.getValue(), resumed || round > 1);
+            }
+            pipeline.run(compressionLevel, acks, journal);
+            if (fileChecksum < 0) fileChecksum = pipeline.fileChecksum();
+        }
+        for (int i = 0; i < numChunks; i++) {
+            if (acks.get(i) == targets[i].length) okCount++;
+        }
+        System.out.printf("CHUNK_OK received for %d/%d chunk(s)%n", okCount, numChunks);
+
+        if (okCount < numChunks) {
+            if (resumed && journal.doneCount() == journaled) {
+                //nothing moved this time either; the next backup asks the server for a new plan instead
+                journal.delete();
+                System.out.println("The resumed backup made no progress; run backup again to start it over.");
+            } else {
+                journal.close();
+                System.out.println("Backup incomplete; run backup again to resume it.");
+            }
+            return true;
+        }
 
-            if (inp.toLowerCase().startsWith("restore")) {
-            String fileName = inp.substring(7).trim();
-            if (fileName.isEmpty()) {
-                            System.out.println("Usage: restore <filename>");
-                            continue;
-                        }
-                        // === SEND RESTORE_REQ ===
-                        int rq = nextRq();
-                        String req = String.format("RESTORE_REQ %02d %s", rq, fileName);
-                        byte[] reqData = req.getBytes();
-                        ds.send(new DatagramPacket(reqData, reqData.length, ip, serverPort));
-
-                        // === WAIT FOR RESTORE_PLAN / RESTORE_FAIL ===
-                        byte[] restorebuf = new byte[2048];
-                        DatagramPacket resp = new DatagramPacket(restorebuf, restorebuf.length);
-                        ds.receive(resp);
-                        String respMsg = new String(resp.getData(), 0, resp.getLength()).trim();
-                        System.out.println("Server: " + respMsg);
-
-                        if (respMsg.startsWith("RESTORE_FAIL")) {
-                            continue;
-                        }
-                        if (!respMsg.startsWith("RESTORE_PLAN")) {
-                            System.out.println("Unexpected response from server.");
-                            continue;
-                        }
+        //If all chunks successful send a backup_done
+        long rqDone = nextRq();
+        ControlFrame.Encoder done = control("BACKUP_DONE").putRq(rqDone).put(f.getName()).put(uploadId);
+        if (fileChecksum >= 0) done.put(fileChecksum); // a resumed fixed-size backup did not read the whole file in order
+        String reply = request(ds, ip, serverPort, done, rqDone, "BACKUP_COMMITTED", "BACKUP-DENIED");
+        System.out.println(reply == null ? "Server did not confirm BACKUP_DONE; the previous backup stays current"
+                : "Server response: " + reply);
+        if (reply == null) {
+            journal.close(); // every chunk is stored, so running backup again only repeats BACKUP_DONE
+            return true;
+        }
+        journal.delete();
+        //a resumed upload the server dropped (replaced by another BACKUP_REQ, or superseded) cannot be committed any more
+        return !resumed || reply.startsWith("BACKUP_COMMITTED")
+                || !(reply.contains("UnknownUpload") || reply.contains("Superseded"));
+    }
 
-                        // === PARSE PLAN ===
-                        String[] parts = respMsg.split("\\s+");
-                        String planFile = parts[2];
-                        String rawList = parts[3];        // ex: [PeerB]
-                        String inner = rawList.substring(1, rawList.length() - 1);
-                        String[] peerNames = inner.isEmpty() ? new String[0] : inner.split(",");
+    //Fetches every chunk of fileName from its storage peers into restored/ and reports the outcome to the server
+    private static void restore(String fileName, DatagramSocket ds, InetAddress ip, int serverPort) throws IOException {
+        // === SEND RESTORE_REQ ===
+        long rq = nextRq();
 
-                        if (peerNames.length == 0) {
-                            System.out.println("No storage peers found in plan.");
-                            continue;
-                        }
+        // === WAIT FOR RESTORE_PLAN / RESTORE_FAIL ===
+        String respMsg = request(ds, ip, serverPort, control("RESTORE_REQ").putRq(rq).put(fileName),
+                rq, "RESTORE_PLAN", "RESTORE_FAIL");
+        System.out.println("Server: " + respMsg);
 
-                        String storagePeer = peerNames[0];
+        if (respMsg == null || respMsg.startsWith("RESTORE_FAIL")) {
+            return;
+        }
+        if (!respMsg.startsWith("RESTORE_PLAN")) {
+            System.out.println("Unexpected response from server.");
+            return;
+        }
 
-                        // === GET CHUNK VIA TCP ===
-                        PeerData target = knownPeers.get(storagePeer);
-                        if (target == null) {
-                            System.out.println("Cannot find storage peer. Try 'list'.");
-                            continue;
-                        }
+        // === PARSE PLAN ===
+        String[] parts = respMsg.split("\\s+");
+        String planFile = parts[2];
+        String rawList = parts[3];        // ex: [PeerB|PeerC,PeerC|PeerD], the replicas of each chunk
+        String inner = rawList.substring(1, rawList.length() - 1);
+        String[] peerNames = inner.isEmpty() ? new String[0] : inner.split(",");
 
-                        try (Socket sock = new Socket(target.getIp(), target.getTcpPort())) {
-                            InputStream in = sock.getInputStream();
-                            OutputStream out = sock.getOutputStream();
-
-                            int rqGet = nextRq();
-                            String header = String.format("GET_CHUNK %02d %s %d\n", rqGet, planFile, 0);
-                            out.write(header.getBytes());
-                            out.flush();
-
-                            // === READ CHUNK_DATA HEADER ===
-                            StringBuilder line = new StringBuilder();
-                            int c;
-                            while ((c = in.read()) != -1 && c != '\n') line.append((char)c);
-                            String h = line.toString().trim();
-                            String[] hh = h.split("\\s+");
-                            int chunkSize = Integer.parseInt(hh[4]);
-                            long checksum = Long.parseLong(hh[5]);
-
-                            File outDir = new File("restored");
-                            outDir.mkdirs();
-                            File outFile = new File(outDir, planFile);
-
-                            CRC32 crc = new CRC32();
-                            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                                byte[] bb = new byte[8192];
-                                int remaining = chunkSize;
-                                while (remaining > 0) {
-                                    int n = in.read(bb, 0, Math.min(bb.length, remaining));
-                                    if (n == -1) break;
-                                    fos.write(bb, 0, n);
-                                    crc.update(bb, 0, n);
-                                    remaining -= n;
-                                }
-                            }
+        if (peerNames.length == 0) {
+            System.out.println("No storage peers found in plan.");
+            return;
+        }
 
-                            long calc = crc.getValue();
-                            boolean ok = (calc == checksum);
-                            System.out.printf("Restore checksum match? %s (expected=%d actual=%d)%n", ok, checksum, calc);
-                            if (ok) {
-                                System.out.printf("RESTORE SUCCESS:", planFile);
-                            } else {
-                                System.out.printf("RESTORE FAILURE:", planFile);
-                            }
+        int numChunks = peerNames.length;
+        long planChunkSize = parts.length > 4 ? safeLong(parts[4]) : 0;
+        long fileSize = parts.length > 5 ? safeLong(parts[5]) : 0;
+        String uploadId = parts.length > 6 ? parts[6] : null; // the backup the chunks were stored under
+        if (uploadId == null || (numChunks > 1 && planChunkSize <= 0)) {
+            System.out.println("Malformed RESTORE_PLAN (missing chunk size or upload id)");
+            return;
+        }
+        //content-defined backups list each chunk's length and hash; fixed ones sit at chunkId * chunkSize
+        long[] chunkOffsets = new long[numChunks];
+        String[] chunkHashes = null;
+        if (parts.length > 8 && "CDC".equals(parts[7])) {
+            String[] manifest = parts[8].split(",");
+            if (manifest.length != numChunks) {
+                System.out.println("Malformed RESTORE_PLAN (manifest does not match the chunk list)");
+                return;
+            }
+            chunkHashes = new String[numChunks];
+            long offset = 0;
+            for (int i = 0; i < numChunks; i++) {
+                int colon = manifest[i].indexOf(':');
+                chunkOffsets[i] = offset;
+                offset += safeLong(manifest[i].substring(0, Math.max(colon, 0)));
+                chunkHashes[i] = manifest[i].substring(colon + 1);
+            }
+        } else {
+            for (int i = 0; i < numChunks; i++) chunkOffsets[i] = i * planChunkSize;
+        }
 
-                            // === REPORT TO SERVER ===
-                            int rqReport = nextRq();
-                            String rep = ok
-                                    ? String.format("RESTORE_OK %02d %s", rqReport, planFile)
-                                    : String.format("RESTORE_FAIL %02d %s ChecksumMismatch", rqReport, planFile);
-                            ds.send(new DatagramPacket(rep.getBytes(), rep.length(), ip, serverPort));
-                        }
-                        catch (Exception e){
-                            System.out.println("Restore error: " + e.getMessage());
+        // === RESOLVE STORAGE PEERS ===
+        //a replica we cannot resolve is skipped, as long as each chunk keeps at least one
+        PeerData[][] sources = new PeerData[numChunks][];
+        boolean resolved = true;
+        for (int i = 0; i < numChunks && resolved; i++) {
+            List<PeerData> replicas = new ArrayList<>();
+            for (String replicaName : peerNames[i].split("\\|")) {
+                PeerData target = resolvePeer(replicaName, ds, ip, serverPort);
+                if (target != null) replicas.add(target);
+            }
+            if (replicas.isEmpty()) {
+                System.out.println("Cannot find any storage peer for chunk " + i + " (" + peerNames[i] + ").");
+                resolved = false;
+            }
+            sources[i] = replicas.toArray(new PeerData[0]);
+        }
+        if (!resolved) return;
+
+        // === GET ALL CHUNKS IN PARALLEL VIA TCP ===
+        File outDir = new File("restored");
+        outDir.mkdirs();
+        File outFile = new File(outDir, planFile);
+        //a restore of the same plan that was cut short keeps the chunks it already wrote and only fetches the others
+        MessageDigest planDigest = ContentChunker.newDigest();
+        planDigest.update(String.join(" ", java.util.Arrays.asList(parts).subList(2, parts.length))
+                .getBytes(java.nio.charset.StandardCharsets.UTF_8)); // everything but the RQ#
+        TransferJournal journal = outFile.exists() ? TransferJournal.find("restore", planFile, ContentChunker.hex(planDigest)) : null;
+        if (journal != null) {
+            System.out.printf("Resuming the unfinished restore of %s (%d/%d chunk(s) already written)%n",
+                    planFile, journal.doneCount(), numChunks);
+        } else {
+            journal = TransferJournal.start("restore", planFile, ContentChunker.hex(planDigest), null);
+        }
+        final TransferJournal restored = journal;
+        int okCount = 0;
+        java.util.concurrent.atomic.AtomicBoolean corrupt = new java.util.concurrent.atomic.AtomicBoolean();
+        try (FileChannel fc = restored.doneCount() > 0
+                ? FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE)
+                : FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            ExecutorService fetchers = Executors.newFixedThreadPool(Math.min(numChunks, MAX_PARALLEL_TRANSFERS));
+            List<Future<Boolean>> fetches = new ArrayList<>();
+            for (int i = 0; i < numChunks; i++) {
+                final int chunkId = i;
+                final long offset = chunkOffsets[i];
+                final String hash = chunkHashes != null ? chunkHashes[i] : null;
+                final PeerData[] replicas = sources[i];
+                if (restored.isDone(chunkId, "-")) {
+                    okCount++;
+                    continue;
+                }
+                fetches.add(fetchers.submit(() -> {
+                    //a transfer that breaks off is picked up where it stopped, a few times; after that, or if a
+                    //replica is down or returns bad data, the chunk starts over from the next replica
+                    try (ChunkFetch state = new ChunkFetch()) {
+                        for (PeerData source : replicas) {
+                            state.reset();
+                            for (int attempt = 1; attempt <= FETCH_ATTEMPTS; attempt++) {
+                                if (fetchChunk(fc, planFile, chunkId, uploadId, offset, hash, source, state)) {
+                                    restored.done(chunkId, "-");
+                                    return true;
+                                }
+                                if (!state.broken) break;
+                            }
                         }
-
-                        continue;
+                        if (state.corrupt) corrupt.set(true);
+                        return false;
                     }
-
-            if (inp.equalsIgnoreCase("bye")) {
-                break;
+                }));
             }
-
-            buf = inp.getBytes();
-            DatagramPacket DpSend = new DatagramPacket(buf, buf.length, ip, serverPort);
-            ds.send(DpSend);
+            for (Future<Boolean> fetch : fetches) {
+                try {
+                    if (fetch.get()) okCount++;
+                } catch (Exception e) {
+                    System.out.println("Restore error: " + e.getMessage());
+                }
+            }
+            fetchers.shutdown();
+            if (fileSize > 0 && fc.size() > fileSize) fc.truncate(fileSize);
         }
-        sc.close();
-        ds.close();
-        if (heartbeatService != null) {
-            heartbeatService.close();
-            System.out.println("Heartbeat service stopped.");
+        catch (Exception e){
+            System.out.println("Restore error: " + e.getMessage());
+        }
+
+        boolean ok = okCount == numChunks;
+        System.out.printf("Restore checksum match? %s (%d/%d chunks verified)%n", ok, okCount, numChunks);
+        if (ok) {
+            restored.delete();
+            System.out.printf("RESTORE SUCCESS: %s%n", outFile.getPath());
+        } else {
+            restored.close();
+            System.out.printf("RESTORE FAILURE: %s (run restore again to fetch the missing chunks)%n", planFile);
         }
+
+        // === REPORT TO SERVER ===
+        long rqReport = nextRq();
+        ControlFrame.Encoder rep = ok
+                ? control("RESTORE_OK").putRq(rqReport).put(planFile)
+                : control("RESTORE_FAIL").putRq(rqReport).put(planFile).put(corrupt.get() ? "ChecksumMismatch" : "Incomplete");
+        sendControl(ds, ip, serverPort, rep);
     }
 
-	// RQ# generator: 01..99 then wraps
-    private static final AtomicInteger rqCounter = new AtomicInteger(0);
+	// RQ# generator: 64-bit ids that never wrap, seeded from the clock so a restarted peer does not reuse
+	// the ids the server still has in its reply cache
+    private static final AtomicLong rqCounter = new AtomicLong(System.currentTimeMillis() * 1000);
 
-    private static int nextRq() {
-        return (rqCounter.getAndIncrement() % 99) + 1; // 1..99
+    private static long nextRq() {
+        return rqCounter.incrementAndGet();
     }
 
-	public static String formatRegistration(String name, String role, InetAddress ipAddress, int udpPort, int tcpPort,
+    //Requests are retransmitted with exponential backoff until the server answers: 0.5s, 1s, 2s, 4s, 4s
+    private static final int REQUEST_TIMEOUT_MS = 500;
+    private static final int MAX_REQUEST_TIMEOUT_MS = 4000;
+    private static final int REQUEST_ATTEMPTS = 5;
+
+    //UDP control messages go out in the binary format, encoded into a per-thread buffer; the server answers in kind
+    private static final ThreadLocal<ControlFrame.Encoder> controlEncoder = ThreadLocal.withInitial(ControlFrame.Encoder::new);
+    private static final ThreadLocal<DatagramPacket> controlPacket = ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+
+    private static ControlFrame.Encoder control(String command) {
+        return controlEncoder.get().begin(command, true);
+    }
+
+    private static void sendControl(DatagramSocket ds, InetAddress addr, int port, ControlFrame.Encoder msg) throws IOException {
+        msg.end();
+        DatagramPacket dp = controlPacket.get();
+        dp.setData(msg.array(), 0, msg.length());
+        dp.setAddress(addr);
+        dp.setPort(port);
+        ds.send(dp);
+    }
+
+	public static ControlFrame.Encoder encodeRegistration(long rq, String name, String role, InetAddress ipAddress, int udpPort, int tcpPort,
 			long storageCapacity) {
 
-        return String.format("REGISTER %d %s %s %s %d %d %dMB", nextRq(), name, role, ipAddress.getHostAddress(),
-                udpPort, tcpPort, storageCapacity);
+        return control("REGISTER").put(rq).put(name).put(role).put(ipAddress.getHostAddress())
+                .put(udpPort).put(tcpPort).put(storageCapacity + "MB");
 
 	}
 
-	public static String formatDeregistration(String name) {
-        return String.format("DE-REGISTER %d %s", nextRq(), name);
+	public static ControlFrame.Encoder encodeDeregistration(long rq, String name) {
+        return control("DE-REGISTER").put(rq).put(name);
 	}
 
-    public static void sendRegistration(DatagramSocket socket, InetAddress serverAddr, int serverPort,
+    //Registers with the server and returns its reply, or null if it never answered
+    public static String sendRegistration(DatagramSocket socket, InetAddress serverAddr, int serverPort,
                                             String name, String role, int tcpPort, long storageCapacity) throws IOException {
         
         int udpPort = socket.getLocalPort();
-        String msg = formatRegistration(name, role, InetAddress.getLocalHost(), udpPort, tcpPort, storageCapacity);
-        byte[] data = msg.getBytes();
-        DatagramPacket packet = new DatagramPacket(data, data.length, serverAddr, serverPort);
-        socket.send(packet);
+        long rq = nextRq();
+        ControlFrame.Encoder msg = encodeRegistration(rq, name, role, InetAddress.getLocalHost(), udpPort, tcpPort, storageCapacity);
         System.out.println("Sent: " + msg );
+        return request(socket, serverAddr, serverPort, msg, rq, "REGISTER");
+    }
+
+    //DELETE_CHUNKS RQ# File_Name Upload_ID Chunk_ID|Content_Hash,...: drops each chunk, and any upload of it still
+    //parked, and answers CHUNKS_DELETED RQ# Count so the server stops resending
+    private static void deleteChunks(ControlFrame frame, DatagramSocket ds, InetAddress serverAddr, int serverPort) {
+        if (frame.size() < 5) return;
+        long rq = frame.longAt(1);
+        String fileName = frame.string(2);
+        String uploadId = frame.string(3);
+        int deleted = 0;
+        try {
+            for (String ref : frame.string(4).split(",")) {
+                String hash = ref.length() == 32 ? ref : null; // a content hash; chunk ids are short decimal numbers
+                String key = chunkKey(fileName, hash != null ? 0 : safeInt(ref), uploadId, hash);
+                ChunkStore.Writer parked = chunkStore.takePartial(key + "@" + uploadId);
+                if (parked != null) parked.close();
+                if (chunkStore.delete(key)) deleted++;
+            }
+            sendControl(ds, serverAddr, serverPort, control("CHUNKS_DELETED").putRq(rq).put(deleted));
+            System.out.printf("Deleted %d chunk(s) of %s upload %s no backup refers to%n", deleted, fileName, uploadId);
+        } catch (IOException e) {
+            System.err.println("DELETE_CHUNKS failed: " + e.getMessage()); // the server asks again
+        }
+    }
+
+    //Registers again after the server forgot this peer. Runs off the dispatcher thread, which has to deliver the reply
+    private static void rejoin(DatagramSocket ds, InetAddress ip, int serverPort, String name, int tcpPort) {
+        if (!rejoining.compareAndSet(false, true)) return; // every heartbeat until then is denied too
+        operations.execute(() -> {
+            try {
+                System.out.println("The server no longer knows this peer; registering again.");
+                System.out.println("Server response: " + sendRegistration(ds, ip, serverPort, name, "BOTH", tcpPort, 1024));
+            } catch (IOException e) {
+                System.err.println("Registering again failed: " + e.getMessage());
+            } finally {
+                rejoining.set(false);
+            }
+        });
     }
 
     public static void sendDeregistration(DatagramSocket socket, InetAddress serverAddr, int serverPort,
                                           String name) throws IOException {
         // Format: DE-REGISTER RQ# Name
-        String msg = formatDeregistration(name);
-        byte[] data = msg.getBytes();
-        DatagramPacket packet = new DatagramPacket(data, data.length, serverAddr, serverPort);
-        socket.send(packet);
+        long rq = nextRq();
+        ControlFrame.Encoder msg = encodeDeregistration(rq, name);
         System.out.println("Sent: " + msg );
 
         // Wait for server response
-        byte[] buf = new byte[1024];
-        DatagramPacket resp = new DatagramPacket(buf, buf.length);
-        socket.receive(resp);
-        String r = new String(resp.getData(), 0, resp.getLength()).trim();
+        String r = request(socket, serverAddr, serverPort, msg, rq, "DE-REGISTER");
         System.out.println("Server response: " + r);
     }
 
-    public static String formatBackupReq(String fileName, long fileSize, long checksum) {
-        return String.format("BACKUP_REQ %02d %s %d %d", nextRq(), fileName, fileSize, checksum);
+    public static ControlFrame.Encoder encodeBackupReq(long rq, String fileName, long fileSize, long checksum) {
+        return control("BACKUP_REQ").putRq(rq).put(fileName).put(fileSize).put(checksum);
     }
 
-    private static long crc32file(File f) throws IOException {
-        CRC32 crc = new CRC32();
-        try (FileInputStream fis = new FileInputStream(f)) {
-            byte[] buf = new byte[8192];
+    private static int safeInt(String s) {
+        try { return Integer.parseInt(s); } catch (Exception e) { return 0; }
+    }
+
+    private static long safeLong(String s) {
+        try { return Long.parseLong(s); } catch (Exception e) { return 0L; }
+    }
+
+    //Sends LIST to the server and caches every peer from the PEERS reply in knownPeers
+    private static String refreshKnownPeers(DatagramSocket ds, InetAddress serverAddr, int serverPort) throws IOException {
+        //PEERS carries no RQ#, so any LIST reply answers every LIST that is waiting
+        String listResp = request(ds, serverAddr, serverPort, control("LIST"), nextRq(), "PEERS");
+        if (listResp == null) return "Server did not answer LIST";
+
+        //Parse and store peer info: PEERS count name ip udp tcp ...
+        String[] listParts = listResp.split("\\s+");
+        if (listParts.length > 1 && "PEERS".equals(listParts[0])) {
+            int count = safeInt(listParts[1]);
+            int idx = 2;
+            for (int i = 0; i < count && idx + 3 < listParts.length; i++) {
+                String pName = listParts[idx++];
+                String pIp = listParts[idx++];
+                int pUdp = safeInt(listParts[idx++]);
+                int pTcp = safeInt(listParts[idx++]);
+                try {
+                    knownPeers.put(pName, new PeerData(pName, "UNKNOWN", InetAddress.getByName(pIp), pUdp, pTcp, "0"));
+                } catch (Exception e) {}
+            }
+        }
+        return listResp;
+    }
+
+    //Sends a request and waits for its reply, retransmitting with exponential backoff; null if the server never
+    //answered. The server answers a retransmission from its reply cache, so a retry never repeats the request's effect.
+    //The dispatcher hands over the reply that echoes rq, so any number of requests can wait at once
+    private static String request(DatagramSocket ds, InetAddress addr, int port, ControlFrame.Encoder msg, long rq,
+                                  String... prefixes) throws IOException {
+        CompletableFuture<String> reply = dispatcher.expect(rq, prefixes);
+        try {
+            int timeout = REQUEST_TIMEOUT_MS;
+            for (int attempt = 1; attempt <= REQUEST_ATTEMPTS; attempt++) {
+                sendControl(ds, addr, port, msg);
+                try {
+                    return reply.get(timeout, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (attempt < REQUEST_ATTEMPTS) {
+                        System.out.printf("No reply after %dms, retransmitting (attempt %d/%d)%n", timeout, attempt + 1, REQUEST_ATTEMPTS);
+                    }
+                    timeout = Math.min(timeout * 2, MAX_REQUEST_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (ExecutionException | CancellationException e) {
+                    return null; // the dispatcher was closed
+                }
+            }
+            return null;
+        } finally {
+            dispatcher.forget(rq);
+        }
+    }
+
+    //Looks a peer up in knownPeers, refreshing the list from the server once if it is missing
+    private static PeerData resolvePeer(String peerName, DatagramSocket ds, InetAddress serverAddr, int serverPort) throws IOException {
+        PeerData pd = knownPeers.get(peerName);
+        if (pd == null) {
+            refreshKnownPeers(ds, serverAddr, serverPort);
+            pd = knownPeers.get(peerName);
+        }
+        return pd;
+    }
+
+    //Sends bytes [offset, offset+length) of f as one SEND_CHUNK frame with their CRC32; hash names a content-defined chunk.
+    //The bytes are sent as they are: for a chunk stored compressed, codec and rawLength describe them
+    private static boolean sendChunk(File f, String fileName, String uploadId, int chunkId, long offset, int length,
+                                     long checksum, String hash, String codec, long rawLength, PeerData target) {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            byte[] sendBuf = new byte[8192];
+
+            long rqSend = nextRq();
+            String header = String.format("SEND_CHUNK %02d %s %d %d %d %s%s\n", rqSend, fileName, chunkId, length, checksum,
+                    uploadId, BackupPipeline.frameSuffix(hash, codec, rawLength));
+            InetSocketAddress remote = new InetSocketAddress(target.getIp(), target.getTcpPort());
+            ConnectionPool.Connection conn = connections.borrow(remote);
+            String ack;
+            try {
+                ack = sendFrameForAck(conn, header, raf, offset, length, sendBuf);
+            } catch (IOException stale) {
+                connections.invalidate(conn);
+                if (!conn.isReused()) throw stale;
+                //the pooled connection had been dropped by the other side; retry once on a fresh one
+                conn = connections.open(remote);
+                ack = sendFrameForAck(conn, header, raf, offset, length, sendBuf);
+            }
+            if (ack == null) {
+                connections.invalidate(conn); // the receiver is still waiting for the missing bytes
+                return false;
+            }
+            connections.release(conn);
+            if (!ack.startsWith("CHUNK_OK")) System.out.println("Ack: " + ack);
+            return ack.startsWith("CHUNK_OK");
+        } catch (IOException e) {
+            System.err.printf("Chunk %d send to %s failed: %s%n", chunkId, target.getName(), e.getMessage());
+            return false;
+        }
+    }
+
+    //Writes one SEND_CHUNK frame and waits for its in-band ack line; null if the file ended inside the chunk. Only the write
+    //holds a transfer slot: the other side checking and storing the chunk is not our transfer
+    private static String sendFrameForAck(ConnectionPool.Connection conn, String header, RandomAccessFile raf, long offset,
+                                          int length, byte[] sendBuf) throws IOException {
+        boolean written;
+        transferSlots.acquireUninterruptibly();
+        try {
+            written = writeChunkFrame(conn.out, header, raf, offset, length, sendBuf);
+        } finally {
+            transferSlots.release();
+        }
+        if (!written) return null;
+        String ack = readLine(conn.in);
+        if (ack.isEmpty()) throw new IOException("connection closed before the chunk was acknowledged");
+        return ack;
+    }
+
+    //Writes one SEND_CHUNK frame; returns false if the file ended before length bytes were sent
+    private static boolean writeChunkFrame(OutputStream out, String header, RandomAccessFile raf, long offset, int length,
+                                           byte[] sendBuf) throws IOException {
+        out.write(header.getBytes());
+        //send only this chunk's bytes
+        raf.seek(offset);
+        int remaining = length;
+        while (remaining > 0) {
+            int n = raf.read(sendBuf, 0, Math.min(sendBuf.length, remaining));
+            if (n == -1) break;
+            out.write(sendBuf, 0, n);
+            remaining -= n;
+        }
+        out.flush();
+        return remaining == 0;
+    }
+
+    //How far the fetch of one chunk got: a transfer that breaks off is asked for again from the byte it stopped at, and
+    //the checksum and decoder carry on where they were
+    private static final class ChunkFetch implements AutoCloseable {
+        final CRC32 crc = new CRC32();
+        ChunkCodec.Decoder decoder;
+        String copy;        // size, checksum, codec and raw size of the copy being received
+        long received;      // payload bytes read so far
+        long written;       // decoded bytes written to the file so far
+        boolean decoded = true;
+        boolean broken;     // the last attempt stopped partway, so it can be resumed
+        boolean corrupt;    // some copy of the chunk failed verification
+
+        //Starts the chunk over, as for a different copy of it
+        void reset() {
+            close();
+            crc.reset();
+            copy = null;
+            received = 0;
+            written = 0;
+            decoded = true;
+            broken = false;
+        }
+
+        @Override
+        public void close() {
+            if (decoder != null) decoder.close();
+            decoder = null;
+        }
+    }
+
+    //Sends GET_CHUNK (naming the upload that stored it, or its content hash for content-defined chunks, listing the codecs
+    //we decode, and the offset to go on from if an earlier attempt broke off) to source and writes the CHUNK_DATA payload,
+    //decoded if it came compressed, at offset; returns whether the whole chunk arrived, its CRC32 matched and it decoded cleanly
+    private static boolean fetchChunk(FileChannel fc, String fileName, int chunkId, String uploadId, long offset, String hash,
+                                      PeerData source, ChunkFetch state) {
+        InetSocketAddress remote = new InetSocketAddress(source.getIp(), source.getTcpPort());
+        ConnectionPool.Connection conn = null;
+        state.broken = false;
+        try {
+            conn = connections.borrow(remote);
+            long rqGet = nextRq();
+            String header = String.format("GET_CHUNK %02d %s %d %s %s %s%s\n", rqGet, fileName, chunkId, uploadId,
+                    hash != null ? hash : "-", ChunkCodec.ACCEPTED, state.received > 0 ? " " + state.received : "");
+            String h;
+            try {
+                h = requestLine(conn, header);
+            } catch (IOException stale) {
+                if (!conn.isReused()) throw stale;
+                h = "";
+            }
+            if (h.isEmpty() && conn.isReused()) {
+                //the pooled connection had been dropped by the other side; retry once on a fresh one
+                connections.invalidate(conn);
+                conn = connections.open(remote);
+                h = requestLine(conn, header);
+            }
+            InputStream in = conn.in;
+
+            // read CHUNK_DATA rq fileName chunkId chunkSize checksum [codec rawSize [from]]
+            String[] hh = h.split("\\s+");
+            if (hh.length >= 1 && "CHUNK_ERROR".equals(hh[0])) {
+                System.out.printf("Chunk %d: %s reported '%s'%n", chunkId, source.getName(), h);
+                connections.release(conn); // a clean refusal, the stream is still in step
+                return false;
+            }
+            if (hh.length < 6 || !"CHUNK_DATA".equals(hh[0])) {
+                System.out.printf("Chunk %d: unexpected reply from %s: '%s'%n", chunkId, source.getName(), h);
+                connections.invalidate(conn);
+                return false;
+            }
+            long chunkSize = Long.parseLong(hh[4]);
+            long checksum = Long.parseLong(hh[5]);
+            String codec = hh.length > 7 ? hh[6] : ChunkCodec.RAW;
+            long rawSize = hh.length > 7 ? Long.parseLong(hh[7]) : chunkSize;
+            long from = hh.length > 8 ? Long.parseLong(hh[8]) : 0;
+            if (!ChunkCodec.isKnown(codec)) {
+                System.out.printf("Chunk %d: %s sent unsupported codec '%s'%n", chunkId, source.getName(), codec);
+                connections.invalidate(conn); // the payload is unread
+                return false;
+            }
+            String copy = chunkSize + " " + checksum + " " + codec + " " + rawSize;
+            if (from == 0 && state.received > 0) {
+                state.reset(); // the peer sent the whole chunk after all
+            } else if (from != state.received || (from > 0 && !copy.equals(state.copy))) {
+                System.out.printf("Chunk %d: %s cannot resume it at byte %d%n", chunkId, source.getName(), state.received);
+                connections.invalidate(conn); // the payload is unread
+                state.reset();
+                return false;
+            }
+            state.copy = copy;
+            if (state.decoder == null && !ChunkCodec.RAW.equals(codec)) state.decoder = new ChunkCodec.Decoder(codec, rawSize);
+
+            byte[] bb = new byte[8192];
+            ChunkCodec.Decoder.Sink toFile = (b, off, len) -> {
+                ByteBuffer src = ByteBuffer.wrap(b, off, len);
+                while (src.hasRemaining()) state.written += fc.write(src, offset + state.written);
+            };
+            byte[] scratch = state.decoder != null ? new byte[16384] : null;
+            while (state.received < chunkSize) {
+                int n;
+                try {
+                    n = in.read(bb, 0, (int) Math.min(bb.length, chunkSize - state.received));
+                } catch (IOException broke) {
+                    n = -1;
+                }
+                if (n == -1) break;
+                state.crc.update(bb, 0, n);
+                if (state.decoder == null) {
+                    toFile.accept(bb, 0, n);
+                } else if (state.decoded) {
+                    try {
+                        state.decoder.update(bb, 0, n, scratch, toFile);
+                    } catch (IOException corrupt) {
+                        state.decoded = false; // drain the rest so the connection stays in step
+                    }
+                }
+                state.received += n;
+            }
+            long missing = chunkSize - state.received;
+            if (missing > 0) {
+                connections.invalidate(conn);
+                state.broken = true;
+                System.out.printf("Chunk %d from %s broke off after %d/%d bytes%n", chunkId, source.getName(), state.received, chunkSize);
+                return false;
+            }
+            connections.release(conn);
+            boolean decoded = state.decoded && (state.decoder == null || state.decoder.complete());
+            boolean ok = state.crc.getValue() == checksum && decoded;
+            if (!ok) {
+                System.out.printf("Chunk %d from %s failed verification (expected=%d actual=%d decoded=%s)%n",
+                        chunkId, source.getName(), checksum, state.crc.getValue(), decoded);
+                state.corrupt = true;
+            }
+            return ok;
+        } catch (Exception e) {
+            if (conn != null) connections.invalidate(conn);
+            state.broken = state.received > 0;
+            System.out.printf("Chunk %d fetch from %s failed: %s%n", chunkId, source.getName(), e.getMessage());
+            return false;
+        }
+    }
+
+    //Sends a one-line request and returns the reply header line ("" if the connection was closed)
+    private static String requestLine(ConnectionPool.Connection conn, String request) throws IOException {
+        conn.out.write(request.getBytes());
+        conn.out.flush();
+        return readLine(conn.in);
+    }
+
+    //Streams a stored compressed chunk through its codec into sink; returns the decoded size, or -1 if it is corrupt
+    private static long decodePart(ChunkStore.Chunk chunk, ChunkCodec.Decoder.Sink sink) throws IOException {
+        long[] produced = {0};
+        try (ChunkCodec.Decoder decoder = new ChunkCodec.Decoder(chunk.codec(), Long.MAX_VALUE)) {
+            ByteBuffer bb = ByteBuffer.allocate(8192);
+            byte[] scratch = new byte[16384];
+            long pos = 0;
             int n;
-            while ((n = fis.read(buf)) != -1) crc.update(buf, 0, n);
+            while (pos < chunk.length()) {
+                bb.limit((int) Math.min(bb.capacity(), chunk.length() - pos));
+                n = chunk.channel().read(bb, chunk.offset() + pos);
+                if (n <= 0) break;
+                decoder.update(bb.array(), 0, n, scratch, (b, off, len) -> {
+                    produced[0] += len;
+                    sink.accept(b, off, len);
+                });
+                bb.clear();
+                pos += n;
+            }
+            if (!decoder.finished()) return -1; // truncated
+        } catch (IOException corrupt) {
+            return -1;
         }
-        return crc.getValue();
+        return produced[0];
     }
 
-    private static int safeInt(String s) {
-        try { return Integer.parseInt(s); } catch (Exception e) { return 0; }
+    //For a requester that did not list the stored chunk's codec: decode it here and send the raw data, from offset from on
+    private static void serveDecoded(OutputStream out, long rq, String fileName, int chunkId, ChunkStore.Chunk chunk, long from)
+            throws IOException {
+        long rawSize = chunk.rawLength();
+        java.io.ByteArrayOutputStream raw = new java.io.ByteArrayOutputStream((int) Math.min(rawSize, Integer.MAX_VALUE - 8));
+        if (decodePart(chunk, raw::write) != rawSize) {
+            out.write(String.format("CHUNK_ERROR %02d %s %d CorruptChunk\n", rq, fileName, chunkId).getBytes());
+            out.flush();
+            return;
+        }
+        byte[] data = raw.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        int skip = (int) Math.min(from, data.length);
+        out.write(String.format("CHUNK_DATA %02d %s %d %d %d%s\n", rq, fileName, chunkId, data.length, crc.getValue(),
+                skip > 0 ? " " + ChunkCodec.RAW + " " + data.length + " " + skip : "").getBytes());
+        out.write(data, skip, data.length - skip);
+        out.flush();
+        System.out.printf("Sent CHUNK_DATA file=%s chunk=%d size=%d (decoded from %s)%n", fileName, chunkId, raw.size(), chunk.codec());
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') line.append((char)c);
+        return line.toString().trim();
     }
 
     //TCP server to receive SEND_CHUNK frames
@@ -439,134 +1101,313 @@ public class PeerUDP{
 
 private static void startTcpChunkServer(ServerSocket ss, DatagramSocket udpSocket,
                                         InetAddress serverAddr, int serverPort, String selfName) {
+    //bounded handler pool: when every handler is busy and the backlog is full the accept loop serves one frame of the
+    //connection itself and closes it, which stops it accepting more until a handler frees up
+    ThreadPoolExecutor handlers = new ThreadPoolExecutor(CHUNK_SERVER_THREADS, CHUNK_SERVER_THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(CHUNK_SERVER_BACKLOG), r -> {
+                Thread t = new Thread(r, "tcp-chunk-handler");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+    handlers.allowCoreThreadTimeOut(true);
     new Thread(() -> {
         try {
             System.out.println("TCP chunk server listening on port " + ss.getLocalPort());
             while (true) {
-                try (Socket s = ss.accept()) {
-                    InputStream in = s.getInputStream();
-                    OutputStream out = s.getOutputStream();
-
-                    // read first line
-                    StringBuilder line = new StringBuilder();
-                    int c;
-                    while ((c = in.read()) != -1 && c != '\n') line.append((char)c);
-                    String header = line.toString().trim();
-                    String[] h = header.split("\\s+");
-                    if (h.length == 0) {
-                        System.out.println("Empty TCP header");
-                        continue;
+                Socket s;
+                try {
+                    s = ss.accept();
+                } catch (IOException ex) {
+                    System.err.println("TCP accept error: " + ex.getMessage());
+                    if (ss.isClosed()) return;
+                    continue;
+                }
+                Thread acceptor = Thread.currentThread();
+                handlers.execute(() -> {
+                    try (s) {
+                        s.setSoTimeout(CHUNK_IO_TIMEOUT_MS); // a stalled client only ties up its own handler
+                        handleChunkConnection(s, udpSocket, serverAddr, serverPort, Thread.currentThread() != acceptor);
+                    } catch (IOException ex) {
+                        System.err.println("TCP receive error: " + ex.getMessage());
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
                     }
+                });
+            }
+        } finally {
+            handlers.shutdown();
+            try { ss.close(); } catch (IOException ignore) {}
+        }
+        }, "tcp-chunk-server").start();
+    }
 
-                    String cmd = h[0].toUpperCase();
+    //Serves SEND_CHUNK, GET_CHUNK, CHUNK_STATUS and REPLICATE frames until the client closes the connection or leaves it idle;
+    //at most MAX_CONCURRENT_TRANSFERS frames move data at once across all connections
+    private static void handleChunkConnection(Socket s, DatagramSocket udpSocket, InetAddress serverAddr, int serverPort,
+                                              boolean keepAlive) throws IOException, InterruptedException {
+        InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+        OutputStream out = s.getOutputStream();
+
+        while (true) {
+            String header;
+            try {
+                header = readLine(in);
+            } catch (SocketTimeoutException idle) {
+                return; // the client kept the connection pooled longer than we keep idle ones
+            }
+            if (header.isEmpty()) return; // closed by the client
+
+            //a REPLICATE push takes its slot itself, for the write only, not for the wait on the new holder's ack
+            boolean replicate = header.regionMatches(true, 0, "REPLICATE ", 0, 10);
+            if (!replicate) transferSlots.acquire();
+            try {
+                serveFrame(header, header.split("\\s+"), in, out, s.getChannel(), udpSocket, serverAddr, serverPort);
+            } finally {
+                if (!replicate) transferSlots.release();
+            }
+            if (!keepAlive) return;
+        }
+    }
 
-                    if ("SEND_CHUNK".equals(cmd)) {
-                        if (h.length < 6) {
-                            System.out.println("Invalid SEND_CHUNK header: " + header);
-                            continue;
-                        }
+    //Store key of a chunk: content-defined chunks go by their hash, fixed-size ones by file, position and upload, so
+    //neither a new backup of the file nor another owner's file of the same name overwrites a committed backup
+    private static String chunkKey(String fileName, int chunkId, String uploadId, String hash) {
+        return hash != null ? hash : fileName + "." + chunkId + "#" + uploadId;
+    }
 
-                        int rq       = safeInt(h[1]);
-                        String fileName = h[2];
-                        int chunkId  = safeInt(h[3]);
-                        int chunkSize = safeInt(h[4]);
-                        long checksum = 0L;
-                        try { checksum = Long.parseLong(h[5]); } catch (Exception ignore) {}
-
-                        File outDir = new File("storage");
-                        outDir.mkdirs();
-                        File outFile = new File(outDir, fileName + "." + chunkId + ".part");
-
-                        CRC32 crc = new CRC32();
-                        try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                            int remaining = chunkSize;
-                            byte[] bufLocal = new byte[8192];
-                            while (remaining > 0) {
-                                int n = in.read(bufLocal, 0, Math.min(bufLocal.length, remaining));
-                                if (n == -1) break;
-                                fos.write(bufLocal, 0, n);
-                                crc.update(bufLocal, 0, n);
-                                remaining -= n;
-                            }
-                        }
+    private static void serveFrame(String header, String[] h, InputStream in, OutputStream out, SocketChannel socketChannel,
+                                   DatagramSocket udpSocket, InetAddress serverAddr, int serverPort) throws IOException {
+        String cmd = h[0].toUpperCase();
 
-                        long calc = crc.getValue();
-                        boolean ok = (calc == checksum);
-                        String ackMsg = ok
-                                ? String.format("CHUNK_OK %02d %s %d", rq, fileName, chunkId)
-                                : String.format("CHUNK_ERROR %02d %s %d ChecksumMismatch", rq, fileName, chunkId);
-                        byte[] ackData = ackMsg.getBytes();
-                        udpSocket.send(new DatagramPacket(ackData, ackData.length, serverAddr, serverPort));
-                        System.out.printf("Stored chunk file=%s chunk=%d size=%d checksumSent=%d checksumCalc=%d ok=%s%n",
-                                fileName, chunkId, chunkSize, checksum, calc, ok);
-
-                        if (ok) {
-                            String storeKey = fileName + ":" + chunkId;
-                            int rqStore = rq;
-                            String storeAck = String.format("STORE_ACK %02d %s %d", rqStore, fileName, chunkId);
-                            byte[] storeAckData = storeAck.getBytes();
-                            udpSocket.send(new DatagramPacket(storeAckData, storeAckData.length, serverAddr, serverPort));
-                            System.out.printf("Sent STORE_ACK to server: file=%s chunk=%d%n", fileName, chunkId);
-                            expectedStoreReqs.remove(storeKey);
-                        }
+        if ("SEND_CHUNK".equals(cmd)) {
+            if (h.length < 7) {
+                throw new IOException("Invalid SEND_CHUNK header: " + header); // the frame length is unknown, so drop the connection
+            }
 
-                    } else if ("GET_CHUNK".equals(cmd)) {
-                        if (h.length < 4) {
-                            System.out.println("Invalid GET_CHUNK header: " + header);
-                            continue;
+            long rq      = safeLong(h[1]);
+            String fileName = h[2];
+            int chunkId  = safeInt(h[3]);
+            long chunkSize = safeLong(h[4]);
+            //'-': the sender streamed the chunk as it read it, and its checksum follows the payload on a "CRC32 n" line
+            boolean trailer = "-".equals(h[5]);
+            long checksum = 0L;
+            try { checksum = Long.parseLong(h[5]); } catch (Exception ignore) {}
+            String uploadId = " " + h[6]; // echoed so the server can match the exact upload
+            //content-defined chunks carry their hash ('-' for none) and are stored once per content, whichever file they came from
+            String hash = h.length > 7 && !"-".equals(h[7]) ? h[7] : null;
+            if (hash != null && !ContentChunker.isHash(hash)) {
+                throw new IOException("Invalid content hash in SEND_CHUNK header: " + header);
+            }
+            //a compressed chunk names its codec and raw size; it is checked and stored as it came, never re-encoded
+            String codec = h.length > 8 ? h[8] : ChunkCodec.RAW;
+            long rawSize = h.length > 9 ? safeLong(h[9]) : chunkSize;
+            boolean codecOk = ChunkCodec.isKnown(codec);
+            //a resumed upload only carries the bytes from this offset on; the ones before it were kept from the attempt that broke off
+            long from = h.length > 10 ? safeLong(h[10]) : 0;
+            if (from < 0 || from > chunkSize) throw new IOException("Invalid resume offset in SEND_CHUNK header: " + header);
+
+            String base = chunkKey(fileName, chunkId, h[6], hash);
+            String partialKey = base + "@" + h[6];
+
+            //chunks arrive concurrently: each is written to its own reserved record and only becomes visible once it checks
+            //out, so a GET_CHUNK or a second upload of the same chunk never sees a half-written one
+            ChunkStore.Writer part = null;
+            boolean resumeOk = true;
+            if (from > 0) {
+                part = chunkStore.takePartial(partialKey);
+                if (part != null && (part.written() != from || part.length() != chunkSize || !part.codec().equals(codec))) {
+                    part.close(); // not the upload the sender thinks it is resuming
+                    part = null;
+                }
+                resumeOk = part != null;
+            } else if (codecOk) {
+                ChunkStore.Writer stale = chunkStore.takePartial(partialKey);
+                if (stale != null) stale.close(); // the sender starts the chunk over
+                part = chunkStore.create(base, codec, chunkSize);
+            }
+            CRC32 crc = new CRC32();
+            MessageDigest digest = hash != null ? ContentChunker.newDigest() : null;
+            //compressed chunks are decoded on the fly only to check that they inflate to the announced size (and hash)
+            ChunkCodec.Decoder decoder = codecOk && !ChunkCodec.RAW.equals(codec) ? new ChunkCodec.Decoder(codec, rawSize) : null;
+            ChunkCodec.Decoder.Sink decoded = (b, off, len) -> { if (digest != null) digest.update(b, off, len); };
+            boolean decodeOk = true;
+            try (decoder) {
+                byte[] bufLocal = new byte[64 * 1024];
+                byte[] scratch = decoder != null ? new byte[16384] : null;
+                //the kept prefix of a resumed chunk is read back so the checksum, hash and decoder still cover all of it
+                long pos = part != null ? 0 : from;
+                while (pos < chunkSize) {
+                    int n;
+                    if (pos < from) {
+                        n = part.readBack(bufLocal, pos, (int) Math.min(bufLocal.length, from - pos));
+                    } else {
+                        n = in.read(bufLocal, 0, (int) Math.min(bufLocal.length, chunkSize - pos));
+                        if (n == -1) throw new EOFException("Connection closed inside chunk " + chunkId + " after " + pos + " bytes");
+                        if (part != null) part.write(bufLocal, 0, n); // an unsupported codec is only drained, to stay in step
+                    }
+                    crc.update(bufLocal, 0, n);
+                    if (decoder != null && decodeOk) {
+                        try {
+                            decoder.update(bufLocal, 0, n, scratch, decoded);
+                        } catch (IOException corrupt) {
+                            decodeOk = false; // keep reading the frame, then refuse it
                         }
+                    } else if (decoder == null && digest != null) {
+                        digest.update(bufLocal, 0, n);
+                    }
+                    pos += n;
+                }
+                if (decoder != null) decodeOk = decodeOk && decoder.complete();
+                if (trailer) {
+                    String[] t = readLine(in).split("\\s+");
+                    if (t.length != 2 || !"CRC32".equals(t[0])) throw new IOException("Missing CRC32 trailer after chunk " + chunkId);
+                    checksum = safeLong(t[1]);
+                }
+            } catch (IOException e) {
+                //the connection broke mid-chunk: keep what arrived, so the sender can carry on from there
+                if (part != null && part.written() > 0) {
+                    chunkStore.keepPartial(partialKey, part);
+                    System.out.printf("Kept %d/%d bytes of chunk file=%s chunk=%d for a resumed upload%n",
+                            part.written(), chunkSize, fileName, chunkId);
+                } else if (part != null) {
+                    part.close();
+                }
+                throw e;
+            }
 
-                        int rq       = safeInt(h[1]);
-                        String fileName = h[2];
-                        int chunkId  = safeInt(h[3]);
-
-                        File inFile = new File("storage", fileName + "." + chunkId + ".part");
-                        if (!inFile.exists()) {
-                            System.out.println("Requested chunk not found: " + inFile.getAbsolutePath());
-                            // (you could send an error header here if you want)
-                            continue;
-                        }
+            long calc = crc.getValue();
+            boolean hashOk = digest == null || (decodeOk && hash.equals(ContentChunker.hex(digest)));
+            String problem = !codecOk ? "UnsupportedCodec"
+                    : !resumeOk ? "ResumeMismatch"
+                    : calc != checksum ? "ChecksumMismatch"
+                    : !decodeOk ? "CorruptChunk"
+                    : !hashOk ? "HashMismatch" : null;
+            boolean ok = problem == null;
+            if (ok) {
+                //supersedes an earlier upload of the chunk, whichever codec that one used
+                part.commit(calc, rawSize);
+            } else if (part != null) {
+                part.close();
+            }
+            //ack in-band on the sender's stream so it can keep its window moving
+            String ackMsg = ok
+                    ? String.format("CHUNK_OK %02d %s %d%s\n", rq, fileName, chunkId, uploadId)
+                    : String.format("CHUNK_ERROR %02d %s %d %s%s\n", rq, fileName, chunkId, problem, uploadId);
+            out.write(ackMsg.getBytes());
+            out.flush();
+            System.out.printf("Stored chunk file=%s chunk=%d size=%d codec=%s rawSize=%d checksumSent=%d checksumCalc=%d ok=%s%s%n",
+                    fileName, chunkId, chunkSize, codec, rawSize, checksum, calc, ok, from > 0 ? " resumedFrom=" + from : "");
+
+            if (ok) {
+                //the server only needs to learn about it eventually, so the STORE_ACK goes out from a background thread
+                String ackUploadId = h[6];
+                storeAcks.execute(() -> {
+                    try {
+                        ControlFrame.Encoder storeAck = control("STORE_ACK").putRq(rq).put(fileName).put(chunkId).put(ackUploadId);
+                        sendControl(udpSocket, serverAddr, serverPort, storeAck);
+                        System.out.printf("Sent STORE_ACK to server: file=%s chunk=%d%n", fileName, chunkId);
+                    } catch (IOException e) {
+                        System.err.println("STORE_ACK send failed: " + e.getMessage());
+                    }
+                });
+            }
 
-                        long chunkSize = inFile.length();
-                        CRC32 crc = new CRC32();
-                        byte[] bufLocal = new byte[8192];
+        } else if ("GET_CHUNK".equals(cmd)) {
+            if (h.length < 5) {
+                throw new IOException("Invalid GET_CHUNK header: " + header); // the frame length is unknown, so drop the connection
+            }
 
-                        // compute checksum
-                        try (FileInputStream fis = new FileInputStream(inFile)) {
-                            int n;
-                            while ((n = fis.read(bufLocal)) != -1) {
-                                crc.update(bufLocal, 0, n);
-                            }
-                        }
-                        long checksum = crc.getValue();
-
-                        // send CHUNK_DATA header
-                        String dataHeader = String.format("CHUNK_DATA %02d %s %d %d %d\n",
-                                rq, fileName, chunkId, chunkSize, checksum);
-                        out.write(dataHeader.getBytes());
-                        out.flush();
-
-                        // send file bytes
-                        try (FileInputStream fis = new FileInputStream(inFile)) {
-                            int n;
-                            while ((n = fis.read(bufLocal)) != -1) {
-                                out.write(bufLocal, 0, n);
-                            }
-                        }
-                        out.flush();
-                        System.out.printf("Sent CHUNK_DATA file=%s chunk=%d size=%d checksum=%d%n",
-                                fileName, chunkId, chunkSize, checksum);
-                    } else {
-                        System.out.println("Unknown TCP command: " + header);
+            long rq      = safeLong(h[1]);
+            String fileName = h[2];
+            int chunkId  = safeInt(h[3]);
+            String hash = h.length > 5 && ContentChunker.isHash(h[5]) ? h[5] : null;
+            String accept = h.length > 6 ? h[6] : null; // codecs the requester decodes; older peers only take raw chunks
+            long from = h.length > 7 ? Math.max(0, safeLong(h[7])) : 0; // a restore that broke off asks for the rest only
+
+            String base = chunkKey(fileName, chunkId, h[4], hash);
+            //the checksum and sizes were stored with the chunk, so serving it is a header plus a kernel-side file -> socket copy
+            try (ChunkStore.Chunk chunk = chunkStore.get(base)) {
+                if (chunk == null) {
+                    System.out.println("Requested chunk not found: " + base);
+                    out.write(String.format("CHUNK_ERROR %02d %s %d NotFound\n", rq, fileName, chunkId).getBytes());
+                    out.flush();
+                    return;
+                }
+                String codec = chunk.codec();
+                long chunkSize = chunk.length();
+                long checksum = chunk.crc();
+                if (!ChunkCodec.accepts(accept, codec)) {
+                    serveDecoded(out, rq, fileName, chunkId, chunk, from);
+                    return;
+                }
+                from = Math.min(from, chunkSize);
+
+                //the header always describes the whole chunk; a resumed one also names the offset its payload starts at
+                String dataHeader = String.format("CHUNK_DATA %02d %s %d %d %d%s\n", rq, fileName, chunkId, chunkSize, checksum,
+                        from > 0 ? " " + codec + " " + chunk.rawLength() + " " + from
+                                : ChunkCodec.RAW.equals(codec) ? "" : " " + codec + " " + chunk.rawLength());
+                out.write(dataHeader.getBytes());
+                out.flush();
+
+                WritableByteChannel sink = socketChannel != null ? socketChannel : Channels.newChannel(out);
+                //a cached chunk comes from off-heap memory; one asked for the second time is read into the cache on the
+                //way out; everything else is copied from the segment by the kernel
+                ChunkCache.Entry cached = chunkCache.get(base, chunk.version());
+                boolean hit = cached != null;
+                if (cached == null) cached = chunkCache.load(base, chunk.version(), chunk.channel(), chunk.offset(), chunkSize);
+                if (cached != null) {
+                    try {
+                        cached.writeTo(sink, from);
+                    } finally {
+                        chunkCache.release(cached);
+                    }
+                } else {
+                    long pos = from;
+                    while (pos < chunkSize) {
+                        long n = chunk.channel().transferTo(chunk.offset() + pos, chunkSize - pos, sink);
+                        if (n <= 0) break;
+                        pos += n;
                     }
-                } catch (IOException ex) {
-                    System.err.println("TCP receive error: " + ex.getMessage());
                 }
+                System.out.printf("Sent CHUNK_DATA file=%s chunk=%d size=%d checksum=%d%s%s%n",
+                        fileName, chunkId, chunkSize, checksum, from > 0 ? " from=" + from : "", hit ? " (cached)" : "");
             }
-        } finally {
-            try { ss.close(); } catch (IOException ignore) {}
+        } else if ("CHUNK_STATUS".equals(cmd)) {
+            //CHUNK_STATUS rq fileName chunkId uploadId [hash]: how much of a broken-off upload we kept, so the sender resumes there
+            if (h.length < 5) {
+                throw new IOException("Invalid CHUNK_STATUS header: " + header);
+            }
+            String fileName = h[2];
+            int chunkId = safeInt(h[3]);
+            String hash = h.length > 5 && ContentChunker.isHash(h[5]) ? h[5] : null;
+            long kept = chunkStore.partialLength(chunkKey(fileName, chunkId, h[4], hash) + "@" + h[4]);
+            out.write(String.format("CHUNK_PARTIAL %02d %s %d %d\n", safeLong(h[1]), fileName, chunkId, kept).getBytes());
+            out.flush();
+        } else if ("REPLICATE".equals(cmd)) {
+            //REPLICATE rq fileName chunkId uploadId targetIp targetTcp [hash]: the server asks us to copy a chunk to a new holder
+            if (h.length < 7) {
+                throw new IOException("Invalid REPLICATE header: " + header); // the frame length is unknown, so drop the connection
+            }
+
+            String fileName = h[2];
+            int chunkId  = safeInt(h[3]);
+            String uploadId = h[4];
+            String hash = h.length > 7 && ContentChunker.isHash(h[7]) ? h[7] : null;
+            String base = chunkKey(fileName, chunkId, uploadId, hash);
+            PeerData target = new PeerData("replica-target", "STORAGE", InetAddress.getByName(h[5]), 0, safeInt(h[6]), "0");
+            boolean ok;
+            try (ChunkStore.Chunk chunk = chunkStore.get(base)) {
+                if (chunk == null) {
+                    System.out.println("Chunk to replicate not found: " + base);
+                    return;
+                }
+                //copied as stored, still compressed if it was, straight out of its segment
+                ok = sendChunk(chunk.file(), fileName, uploadId, chunkId, chunk.offset(), (int) chunk.length(), chunk.crc(), hash,
+                        chunk.codec(), chunk.rawLength(), target);
+            }
+            System.out.printf("Replicated chunk file=%s chunk=%d to %s:%s ok=%s%n", fileName, chunkId, h[5], h[6], ok);
+        } else {
+            throw new IOException("Unknown TCP command: " + header);
         }
-        }, "tcp-chunk-server").start();
     }
 }
-
@@ -0,0 +1,120 @@
+package src.peer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The owner's record of a backup or restore in progress, kept in journal/<file>.<kind> until the
+ * transfer completes. Its first line identifies the transfer: the file's size, modification time
+ * and backup options for a backup, or a digest of the plan for a restore. A backup's journal also
+ * keeps the BACKUP_PLAN it follows. One line is then appended for every chunk transfer that
+ * finished, so a backup or restore started again after a failure or a restart only moves what
+ * is still missing. The lines are flushed but not fsynced: a line lost in a crash only means one
+ * chunk is sent again.
+ */
+public class TransferJournal implements AutoCloseable {
+    private static final File DIR = new File("journal");
+
+    private final File file;
+    private final String plan;
+    private final Set<String> done = new HashSet<>();
+    private OutputStream out;
+
+    private TransferJournal(File file, String plan) {
+        this.file = file;
+        this.plan = plan;
+    }
+
+    /** The journal of an unfinished transfer of fileName with this identity, or null. A journal for anything else is dropped. */
+    public static TransferJournal find(String kind, String fileName, String identity) {
+        File f = journalFile(kind, fileName);
+        if (!f.exists()) return null;
+        try {
+            List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(identity)) {
+                f.delete(); // the file or the plan changed since
+                return null;
+            }
+            String plan = null;
+            Set<String> done = new HashSet<>();
+            for (String line : lines.subList(1, lines.size())) {
+                if (line.startsWith("PLAN ")) plan = line.substring(5);
+                if (line.startsWith("DONE ")) done.add(line.substring(5));
+            }
+            TransferJournal journal = new TransferJournal(f, plan);
+            journal.done.addAll(done);
+            journal.out = new FileOutputStream(f, true);
+            return journal;
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable journal " + f.getPath() + ": " + e.getMessage());
+            f.delete();
+            return null;
+        }
+    }
+
+    /** Starts a new journal for fileName, replacing any old one; plan may be null. */
+    public static TransferJournal start(String kind, String fileName, String identity, String plan) throws IOException {
+        DIR.mkdirs();
+        File f = journalFile(kind, fileName);
+        TransferJournal journal = new TransferJournal(f, plan);
+        journal.out = new FileOutputStream(f, false);
+        journal.append(identity);
+        if (plan != null) journal.append("PLAN " + plan);
+        return journal;
+    }
+
+    /** The plan recorded when the journal was started, or null. */
+    public String plan() {
+        return plan;
+    }
+
+    public synchronized boolean isDone(int chunkId, String peer) {
+        return done.contains(chunkId + " " + peer);
+    }
+
+    public synchronized int doneCount() {
+        return done.size();
+    }
+
+    /** Records that chunkId reached peer ("-" for a restore). */
+    public synchronized void done(int chunkId, String peer) {
+        if (!done.add(chunkId + " " + peer)) return;
+        try {
+            append("DONE " + chunkId + " " + peer);
+        } catch (IOException e) {
+            System.err.println("Journal write failed: " + e.getMessage()); // only costs a resend after a failure
+        }
+    }
+
+    /** Closes and removes the journal once the transfer is complete or can no longer be resumed. */
+    public synchronized void delete() {
+        close();
+        file.delete();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (out != null) out.close();
+        } catch (IOException ignore) {
+        }
+        out = null;
+    }
+
+    private void append(String line) throws IOException {
+        if (out == null) return;
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static File journalFile(String kind, String fileName) {
+        return new File(DIR, fileName + "." + kind);
+    }
+}
@@ -0,0 +1,241 @@
+package src.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import src.peer.PeerData;
+
+/**
+ * Deletes chunks from the storage peers once the chunk table no longer needs them. That covers the
+ * replicas of uploads that were abandoned, superseded or retired by a newer backup, the replicas a
+ * dropped peer still holds, and stray copies acknowledged for an upload that is already gone. Each
+ * peer gets
+ *
+ *   DELETE_CHUNKS RQ# File_Name Upload_ID Chunk_ID|Content_Hash,...
+ *
+ * and answers CHUNKS_DELETED RQ# Count. A batch nobody answers is sent again. A retired upload waits
+ * GRACE_MS before its replicas are looked at, so a plan handed out meanwhile can still reuse its
+ * content. Every chunk is checked against the table again right before it goes out, so nothing a
+ * backup refers to is deleted. A peer that is not registered keeps its deletes until it comes back.
+ */
+class ChunkReaper implements AutoCloseable {
+	private static final long TICK_MS = 1000;
+	private static final long GRACE_MS = 60000;
+	private static final long ACK_TIMEOUT_MS = 2000;
+	private static final int MAX_ATTEMPTS = 5;
+	private static final int REFS_PER_FRAME = 128; // a content hash takes 33 bytes of the datagram
+	private static final int FRAMES_PER_TICK = 16; // per peer
+	private static final int MAX_QUEUED_PER_PEER = 1 << 20;
+
+	/** Sends one DELETE_CHUNKS frame to peer. */
+	interface Sender {
+		void send(PeerData peer, long rq, String fileName, int uploadId, String refs) throws IOException;
+	}
+
+	/** One replica to delete: a fixed-size chunk of an upload, or a piece of content. */
+	private static final class Doomed {
+		final String fileName;
+		final int uploadId;
+		final int chunkId;
+		final String hash; // content-defined chunks only
+
+		Doomed(String fileName, int uploadId, int chunkId, String hash) {
+			this.fileName = fileName;
+			this.uploadId = uploadId;
+			this.chunkId = chunkId;
+			this.hash = hash;
+		}
+	}
+
+	private static final class Retired {
+		final ChunkTable.FileEntry entry;
+		final long dueAt;
+
+		Retired(ChunkTable.FileEntry entry, long dueAt) {
+			this.entry = entry;
+			this.dueAt = dueAt;
+		}
+	}
+
+	/** One DELETE_CHUNKS frame waiting for its CHUNKS_DELETED. */
+	private static final class Batch {
+		final String peerName;
+		final List<Doomed> chunks; // all of one file name and upload id
+		int attempts;
+		long sentAt;
+
+		Batch(String peerName, List<Doomed> chunks) {
+			this.peerName = peerName;
+			this.chunks = chunks;
+		}
+	}
+
+	private final ChunkTable table;
+	private final Map<String, PeerData> peers;
+	private final LongSupplier rqSource;
+	private volatile Sender sender;
+	private final Queue<Retired> retiring = new ConcurrentLinkedQueue<>(); // in due order, since the grace period is fixed
+	private final Map<String, List<Doomed>> byPeer = new HashMap<>(); // guarded by itself
+	private final Map<Long, Batch> unacked = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "chunk-reaper");
+		t.setDaemon(true);
+		return t;
+	});
+
+	ChunkReaper(ChunkTable table, Map<String, PeerData> peers, LongSupplier rqSource) {
+		this.table = table;
+		this.peers = peers;
+		this.rqSource = rqSource;
+	}
+
+	void start(Sender sender) {
+		this.sender = sender;
+		scheduler.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/** entry is no longer a committed or pending backup; its replicas go once the grace period is over. */
+	void retire(ChunkTable.FileEntry entry) {
+		retiring.add(new Retired(entry, System.currentTimeMillis() + GRACE_MS));
+	}
+
+	/** peerName held chunkId of entry when it was dropped from the chunk table. */
+	void dropped(String peerName, ChunkTable.FileEntry entry, int chunkId) {
+		queue(peerName, new Doomed(entry.fileName, entry.fileId, chunkId, entry.hash(chunkId)));
+	}
+
+	/** peerName stored a chunk that no backup records, such as one of an upload that was already abandoned. */
+	void stray(String peerName, String fileName, int uploadId, int chunkId, String hash) {
+		queue(peerName, new Doomed(fileName, uploadId, chunkId, hash));
+	}
+
+	/** CHUNKS_DELETED RQ# Count arrived. */
+	void acked(long rq, int deleted) {
+		Batch batch = unacked.remove(rq);
+		if (batch != null) {
+			System.out.printf("[REAPER] %s deleted %d of %d chunk(s) of %s upload %d%n", batch.peerName, deleted,
+					batch.chunks.size(), batch.chunks.get(0).fileName, batch.chunks.get(0).uploadId);
+		}
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	private void queue(String peerName, Doomed chunk) {
+		synchronized (byPeer) {
+			List<Doomed> queued = byPeer.computeIfAbsent(peerName, k -> new ArrayList<>());
+			if (queued.size() < MAX_QUEUED_PER_PEER) queued.add(chunk);
+		}
+	}
+
+	private void tick() {
+		try {
+			long now = System.currentTimeMillis();
+			Retired retired;
+			while ((retired = retiring.peek()) != null && retired.dueAt <= now) {
+				retiring.poll();
+				ChunkTable.FileEntry e = retired.entry;
+				for (int chunkId = 0; chunkId < e.numChunks; chunkId++) {
+					for (int r = 0; r < e.replicas; r++) {
+						int peerId = e.replica(chunkId, r);
+						if (peerId == ChunkTable.NO_PEER) break;
+						queue(table.peerName(peerId), new Doomed(e.fileName, e.fileId, chunkId, e.hash(chunkId)));
+					}
+				}
+			}
+			resend(now);
+			List<String> names;
+			synchronized (byPeer) {
+				names = new ArrayList<>(byPeer.keySet());
+			}
+			for (String name : names) {
+				if (peers.containsKey(name)) sendQueued(name, now);
+			}
+		} catch (RuntimeException e) {
+			System.err.println("[REAPER] Tick failed: " + e);
+		}
+	}
+
+	//Sends some of the deletes queued for a registered peer, leaving out whatever the table needs again
+	private void sendQueued(String name, long now) {
+		List<Doomed> taken;
+		synchronized (byPeer) {
+			List<Doomed> queued = byPeer.get(name);
+			if (queued == null) return;
+			List<Doomed> tail = queued.subList(Math.max(0, queued.size() - REFS_PER_FRAME * FRAMES_PER_TICK), queued.size());
+			taken = new ArrayList<>(tail);
+			tail.clear();
+			if (queued.isEmpty()) byPeer.remove(name);
+		}
+		int peerId = table.internPeer(name);
+		Set<String> hashes = new HashSet<>();
+		for (Doomed d : taken) {
+			if (d.hash != null) hashes.add(d.hash);
+		}
+		Set<String> inUse = hashes.isEmpty() ? hashes : table.contentInUse(peerId, hashes);
+		Set<String> listed = new HashSet<>();
+		Map<String, List<Doomed>> byUpload = new LinkedHashMap<>();
+		for (Doomed d : taken) {
+			if (d.hash != null ? inUse.contains(d.hash) || !listed.add(d.hash) : table.holds(d.uploadId, d.chunkId, peerId)) continue;
+			byUpload.computeIfAbsent(d.fileName + "#" + d.uploadId, k -> new ArrayList<>()).add(d);
+		}
+		for (List<Doomed> group : byUpload.values()) {
+			for (int i = 0; i < group.size(); i += REFS_PER_FRAME) {
+				send(new Batch(name, new ArrayList<>(group.subList(i, Math.min(group.size(), i + REFS_PER_FRAME)))), now);
+			}
+		}
+	}
+
+	private void resend(long now) {
+		for (Map.Entry<Long, Batch> pending : unacked.entrySet()) {
+			Batch batch = pending.getValue();
+			if (now - batch.sentAt < ACK_TIMEOUT_MS || !unacked.remove(pending.getKey(), batch)) continue;
+			if (!peers.containsKey(batch.peerName)) {
+				for (Doomed d : batch.chunks) queue(batch.peerName, d); // kept until it registers again
+			} else if (batch.attempts >= MAX_ATTEMPTS) {
+				System.out.printf("[REAPER] %s never confirmed deleting %d chunk(s) of %s upload %d; giving up.%n", batch.peerName,
+						batch.chunks.size(), batch.chunks.get(0).fileName, batch.chunks.get(0).uploadId);
+			} else {
+				send(batch, now);
+			}
+		}
+	}
+
+	private void send(Batch batch, long now) {
+		PeerData peer = peers.get(batch.peerName);
+		if (peer == null) {
+			for (Doomed d : batch.chunks) queue(batch.peerName, d);
+			return;
+		}
+		StringBuilder refs = new StringBuilder();
+		for (Doomed d : batch.chunks) {
+			if (refs.length() > 0) refs.append(',');
+			if (d.hash != null) refs.append(d.hash);
+			else refs.append(d.chunkId);
+		}
+		Doomed first = batch.chunks.get(0);
+		long rq = rqSource.getAsLong();
+		batch.attempts++;
+		batch.sentAt = now;
+		unacked.put(rq, batch);
+		try {
+			sender.send(peer, rq, first.fileName, first.uploadId, refs.toString());
+		} catch (IOException e) {
+			System.err.printf("[REAPER] DELETE_CHUNKS to %s failed: %s%n", batch.peerName, e.getMessage()); // sent again after the timeout
+		}
+	}
+}
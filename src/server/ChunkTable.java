@@ -0,0 +1,445 @@
+package src.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Where every chunk of every backed-up file lives.
+ * Peer names are interned to small int ids once, and each file keeps its chunk -> replica mapping
+ * in a single int array (replicas slots per chunk), so a file with a million chunks costs ~4MB per
+ * replica instead of a million strings.
+ *
+ * A new backup starts out pending and only replaces the file's committed backup when the owner
+ * reports BACKUP_DONE, so a failed or abandoned upload never costs the last good manifest.
+ */
+class ChunkTable {
+	static final int NO_PEER = -1;
+
+	/** Called for every chunk that lost a replica in {@link #removePeer}. */
+	interface ReplicaLost {
+		void lost(FileEntry entry, int chunkId);
+	}
+
+	/**
+	 * One backed-up file: its layout plus the peer ids holding each chunk.
+	 * A chunk's replicas fill its slots from the front; NO_PEER marks the unused ones.
+	 * Writers synchronize on the entry, readers do not need to.
+	 */
+	static final class FileEntry {
+		final int fileId;
+		final String owner;
+		final String fileName;
+		final long fileSize;
+		final int chunkSize;
+		final int numChunks;
+		final int replicas;
+		final int[] lengths; // content-defined chunking only: each chunk's length and content hash, else null
+		final String[] hashes;
+		private final AtomicIntegerArray locations;
+		private final AtomicInteger stored = new AtomicInteger(); // chunks with at least one replica
+
+		private FileEntry(int fileId, String owner, String fileName, long fileSize, int chunkSize, int numChunks, int replicas,
+				int[] lengths, String[] hashes) {
+			this.fileId = fileId;
+			this.owner = owner;
+			this.fileName = fileName;
+			this.fileSize = fileSize;
+			this.chunkSize = chunkSize;
+			this.numChunks = numChunks;
+			this.replicas = replicas;
+			this.lengths = lengths;
+			this.hashes = hashes;
+			int[] empty = new int[numChunks * replicas];
+			Arrays.fill(empty, NO_PEER);
+			this.locations = new AtomicIntegerArray(empty);
+		}
+
+		int replica(int chunkId, int r) { return locations.get(chunkId * replicas + r); }
+		int replicaCount(int chunkId) {
+			int r = 0;
+			while (r < replicas && replica(chunkId, r) != NO_PEER) r++;
+			return r;
+		}
+		int storedChunks() { return stored.get(); }
+		boolean isComplete() { return stored.get() == numChunks; }
+		boolean isContentDefined() { return hashes != null; }
+		String hash(int chunkId) { return hashes != null ? hashes[chunkId] : null; }
+		int length(int chunkId) { return lengths != null ? lengths[chunkId] : chunkSize; } // at most chunkSize for fixed chunks
+	}
+
+	private final Map<String, Integer> peerIds = new ConcurrentHashMap<>();
+	private volatile String[] peerNames = new String[16];
+	private int peerCount = 0;
+
+	private final Map<String, FileEntry> files = new ConcurrentHashMap<>(); // "owner:filename" -> last committed entry
+	private final Map<String, FileEntry> pending = new ConcurrentHashMap<>(); // "owner:filename" -> upload not yet committed
+	private final Map<Integer, FileEntry> uploads = new ConcurrentHashMap<>(); // upload id (fileId) -> committed or pending entry
+	private final AtomicInteger fileIdCounter = new AtomicInteger();
+	private final Map<String, Long> contentIndex = new ConcurrentHashMap<>(); // content hash -> (fileId << 32 | chunkId) of a stored copy
+
+	/** Returns the id for a peer name, assigning the next free one the first time it is seen. */
+	int internPeer(String name) {
+		Integer id = peerIds.get(name);
+		if (id != null) return id;
+		synchronized (this) {
+			id = peerIds.get(name);
+			if (id != null) return id;
+			String[] names = peerNames;
+			if (peerCount == names.length) {
+				names = Arrays.copyOf(names, names.length * 2);
+			}
+			names[peerCount] = name;
+			peerNames = names;
+			peerIds.put(name, peerCount);
+			return peerCount++;
+		}
+	}
+
+	String peerName(int peerId) {
+		return peerId == NO_PEER ? null : peerNames[peerId];
+	}
+
+	/** A fresh upload id, so a plan can be charged to its upload before {@link #begin} records it. */
+	int nextUploadId() {
+		return fileIdCounter.incrementAndGet();
+	}
+
+	/**
+	 * Starts a new backup of owner's file under an id from {@link #nextUploadId}. It replaces any earlier
+	 * pending upload of the file, but the committed backup stays restorable until {@link #commit}.
+	 * The entry's fileId doubles as the upload id handed out in BACKUP_PLAN.
+	 */
+	FileEntry begin(int uploadId, String owner, String fileName, long fileSize, int chunkSize, int numChunks, int replicas) {
+		return begin(uploadId, owner, fileName, fileSize, chunkSize, numChunks, replicas, null, null);
+	}
+
+	/** Same, for a content-defined backup whose chunks have the given lengths and content hashes. */
+	FileEntry begin(int uploadId, String owner, String fileName, long fileSize, int chunkSize, int numChunks, int replicas,
+			int[] lengths, String[] hashes) {
+		return install(new FileEntry(uploadId, owner, fileName, fileSize, chunkSize, numChunks, replicas, lengths, hashes));
+	}
+
+	/**
+	 * Re-creates a pending backup logged before a restart under its original upload id, unless that id
+	 * is already known or a newer backup of the file replaced it.
+	 */
+	void restore(int fileId, String owner, String fileName, long fileSize, int chunkSize, int numChunks, int replicas,
+			int[] lengths, String[] hashes) {
+		if (uploads.containsKey(fileId)) return;
+		FileEntry current = files.get(key(owner, fileName));
+		FileEntry newer = pending.get(key(owner, fileName));
+		if ((current != null && current.fileId > fileId) || (newer != null && newer.fileId > fileId)) return;
+		fileIdCounter.accumulateAndGet(fileId, Math::max);
+		install(new FileEntry(fileId, owner, fileName, fileSize, chunkSize, numChunks, replicas, lengths, hashes));
+	}
+
+	private FileEntry install(FileEntry entry) {
+		String key = key(entry.owner, entry.fileName);
+		synchronized (this) {
+			uploads.put(entry.fileId, entry);
+			FileEntry previous = pending.put(key, entry);
+			if (previous != null) uploads.remove(previous.fileId, previous); // abandoned by its owner
+		}
+		return entry;
+	}
+
+	/**
+	 * Makes a pending upload the file's backup, dropping the one it replaces. Returns false if the
+	 * upload is unknown, already committed or older than the committed backup.
+	 */
+	boolean commit(FileEntry entry) {
+		String key = key(entry.owner, entry.fileName);
+		synchronized (this) {
+			if (!pending.remove(key, entry)) return false;
+			FileEntry previous = files.get(key);
+			if (previous != null && previous.fileId > entry.fileId) return false;
+			files.put(key, entry);
+			if (previous != null) uploads.remove(previous.fileId, previous);
+		}
+		//the previous backup's chunks are now only reachable through this one
+		if (entry.hashes != null) {
+			for (int chunkId = 0; chunkId < entry.numChunks; chunkId++) {
+				if (entry.replica(chunkId, 0) != NO_PEER) contentIndex.put(entry.hashes[chunkId], location(entry, chunkId));
+			}
+		}
+		return true;
+	}
+
+	/** The last committed backup of owner's file, or null. */
+	FileEntry get(String owner, String fileName) {
+		return files.get(key(owner, fileName));
+	}
+
+	/** owner's upload of the file that has not been committed yet, or null. */
+	FileEntry pending(String owner, String fileName) {
+		return pending.get(key(owner, fileName));
+	}
+
+	/** The upload a BACKUP_PLAN handed out, or null once it has been superseded. */
+	FileEntry byUploadId(int uploadId) {
+		return uploads.get(uploadId);
+	}
+
+	/**
+	 * Records that peerId holds a replica of chunkId of entry.
+	 * Returns false for an out of range chunk id or when every replica slot is already taken.
+	 */
+	boolean recordChunk(FileEntry entry, int chunkId, int peerId) {
+		if (chunkId < 0 || chunkId >= entry.numChunks) return false;
+		int base = chunkId * entry.replicas;
+		synchronized (entry) {
+			for (int r = 0; r < entry.replicas; r++) {
+				int current = entry.locations.get(base + r);
+				if (current == peerId) return true;
+				if (current == NO_PEER) {
+					entry.locations.set(base + r, peerId);
+					if (r == 0) entry.stored.incrementAndGet();
+					if (entry.hashes != null) indexContent(entry, chunkId);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Peer ids currently holding a chunk with this content hash, from any committed or pending backup,
+	 * or an empty array if the content is not stored anywhere.
+	 */
+	int[] holdersOf(String hash) {
+		Long where = contentIndex.get(hash);
+		if (where == null) return new int[0];
+		FileEntry entry = indexed(hash, where);
+		if (entry == null) {
+			contentIndex.remove(hash, where); // that backup was superseded
+			return new int[0];
+		}
+		int chunkId = (int) where.longValue();
+		int[] holders = new int[entry.replicaCount(chunkId)];
+		for (int r = 0; r < holders.length; r++) holders[r] = entry.replica(chunkId, r);
+		return holders;
+	}
+
+	/** Whether peerId holds chunkId of upload uploadId, which must still be a committed or pending backup. */
+	boolean holds(int uploadId, int chunkId, int peerId) {
+		FileEntry entry = uploads.get(uploadId);
+		if (entry == null || chunkId < 0 || chunkId >= entry.numChunks) return false;
+		for (int r = 0; r < entry.replicas; r++) {
+			if (entry.replica(chunkId, r) == peerId) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The hashes among the given ones that some committed or pending backup still needs on peerId: a
+	 * replica of that content is recorded there, or a pending upload still waits for a replica of it and
+	 * may store it there. One pass over the table, however many hashes are asked about.
+	 */
+	Set<String> contentInUse(int peerId, Set<String> hashes) {
+		Set<String> inUse = new HashSet<>();
+		for (FileEntry entry : uploads.values()) {
+			if (entry.hashes == null) continue;
+			boolean open = pending.get(key(entry.owner, entry.fileName)) == entry;
+			for (int chunkId = 0; chunkId < entry.numChunks; chunkId++) {
+				String hash = entry.hashes[chunkId];
+				if (!hashes.contains(hash) || inUse.contains(hash)) continue;
+				if (open && entry.replicaCount(chunkId) < entry.replicas) {
+					inUse.add(hash);
+					continue;
+				}
+				for (int r = 0; r < entry.replicas; r++) {
+					if (entry.replica(chunkId, r) == peerId) {
+						inUse.add(hash);
+						break;
+					}
+				}
+			}
+		}
+		return inUse;
+	}
+
+	//Keeps the index on a live copy: a pending upload that reuses a committed chunk must not take it over,
+	//or abandoning that upload would make the content look unstored
+	private void indexContent(FileEntry entry, int chunkId) {
+		String hash = entry.hashes[chunkId];
+		contentIndex.merge(hash, location(entry, chunkId), (old, mine) -> indexed(hash, old) != null ? old : mine);
+	}
+
+	//The entry an index location points at, or null if it no longer holds that content
+	private FileEntry indexed(String hash, long where) {
+		FileEntry entry = uploads.get((int) (where >>> 32));
+		int chunkId = (int) where;
+		if (entry == null || entry.hashes == null || chunkId >= entry.numChunks || !hash.equals(entry.hashes[chunkId])) return null;
+		return entry.replica(chunkId, 0) != NO_PEER ? entry : null;
+	}
+
+	private static long location(FileEntry entry, int chunkId) {
+		return ((long) entry.fileId << 32) | chunkId;
+	}
+
+	/** Appends "len:hash,len:hash,..." for a content-defined backup. */
+	void appendManifest(FileEntry entry, StringBuilder sb) {
+		for (int i = 0; i < entry.numChunks; i++) {
+			if (i > 0) sb.append(',');
+			sb.append(entry.lengths[i]).append(':').append(entry.hashes[i]);
+		}
+	}
+
+	/**
+	 * Drops peerId from every chunk of every committed or pending backup, calling onLost for each chunk
+	 * that had a replica there. Returns the number of replicas removed.
+	 */
+	int removePeer(int peerId, ReplicaLost onLost) {
+		int removed = 0;
+		for (FileEntry entry : uploads.values()) {
+			for (int chunkId = 0; chunkId < entry.numChunks; chunkId++) {
+				int base = chunkId * entry.replicas;
+				boolean hit = false;
+				synchronized (entry) {
+					for (int r = 0; r < entry.replicas; r++) {
+						if (entry.locations.get(base + r) != peerId) continue;
+						//shift the remaining replicas forward so the slots stay packed
+						for (int k = r; k < entry.replicas - 1; k++) {
+							entry.locations.set(base + k, entry.locations.get(base + k + 1));
+						}
+						entry.locations.set(base + entry.replicas - 1, NO_PEER);
+						if (entry.locations.get(base) == NO_PEER) entry.stored.decrementAndGet();
+						hit = true;
+						break;
+					}
+				}
+				if (hit) {
+					removed++;
+					onLost.lost(entry, chunkId);
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Appends "[p0a|p0b,p1a|p1b,...]" (the replicas of every chunk, in chunk order) to sb.
+	 * Returns false, leaving sb partially written, if some chunk has no replica yet.
+	 */
+	boolean appendPeerList(FileEntry entry, StringBuilder sb) {
+		sb.append('[');
+		for (int i = 0; i < entry.numChunks; i++) {
+			int base = i * entry.replicas;
+			if (entry.locations.get(base) == NO_PEER) return false;
+			if (i > 0) sb.append(',');
+			for (int r = 0; r < entry.replicas; r++) {
+				int peerId = entry.locations.get(base + r);
+				if (peerId == NO_PEER) break;
+				if (r > 0) sb.append('|');
+				sb.append(peerNames[peerId]);
+			}
+		}
+		sb.append(']');
+		return true;
+	}
+
+	/**
+	 * Writes the peer name table and every committed or pending backup, oldest upload first, so that
+	 * {@link #readSnapshot} rebuilds the same peer ids and the same committed and pending backup of each file.
+	 */
+	void writeSnapshot(DataOutput out) throws IOException {
+		List<FileEntry> entries = new ArrayList<>(uploads.values());
+		entries.sort(Comparator.comparingInt(e -> e.fileId));
+		List<int[]> slotsOf = new ArrayList<>(entries.size());
+		for (FileEntry e : entries) {
+			int[] slots = new int[e.numChunks * e.replicas];
+			synchronized (e) {
+				for (int i = 0; i < slots.length; i++) slots[i] = e.locations.get(i);
+			}
+			slotsOf.add(slots);
+		}
+		//peer ids are only ever appended, so names captured after the slots resolve every id in them
+		String[] names;
+		int count;
+		synchronized (this) {
+			names = peerNames;
+			count = peerCount;
+		}
+		out.writeInt(count);
+		for (int i = 0; i < count; i++) out.writeUTF(names[i]);
+		out.writeInt(fileIdCounter.get());
+
+		out.writeInt(entries.size());
+		for (int f = 0; f < entries.size(); f++) {
+			FileEntry e = entries.get(f);
+			out.writeInt(e.fileId);
+			out.writeBoolean(files.get(key(e.owner, e.fileName)) == e);
+			out.writeUTF(e.owner);
+			out.writeUTF(e.fileName);
+			out.writeLong(e.fileSize);
+			out.writeInt(e.chunkSize);
+			out.writeInt(e.numChunks);
+			out.writeInt(e.replicas);
+			out.writeBoolean(e.hashes != null);
+			if (e.hashes != null) {
+				for (int i = 0; i < e.numChunks; i++) {
+					out.writeInt(e.lengths[i]);
+					out.writeUTF(e.hashes[i]);
+				}
+			}
+			for (int slot : slotsOf.get(f)) out.writeInt(slot);
+		}
+	}
+
+	/** Loads a {@link #writeSnapshot} image into this table, which must still be empty. */
+	void readSnapshot(DataInput in) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) internPeer(in.readUTF());
+		fileIdCounter.accumulateAndGet(in.readInt(), Math::max);
+
+		int numFiles = in.readInt();
+		for (int f = 0; f < numFiles; f++) {
+			int fileId = in.readInt();
+			boolean committed = in.readBoolean();
+			String owner = in.readUTF();
+			String fileName = in.readUTF();
+			long fileSize = in.readLong();
+			int chunkSize = in.readInt();
+			int numChunks = in.readInt();
+			int replicas = in.readInt();
+			int[] lengths = null;
+			String[] hashes = null;
+			if (in.readBoolean()) {
+				lengths = new int[numChunks];
+				hashes = new String[numChunks];
+				for (int i = 0; i < numChunks; i++) {
+					lengths[i] = in.readInt();
+					hashes[i] = in.readUTF();
+				}
+			}
+			FileEntry e = new FileEntry(fileId, owner, fileName, fileSize, chunkSize, numChunks, replicas, lengths, hashes);
+			for (int chunkId = 0; chunkId < e.numChunks; chunkId++) {
+				for (int r = 0; r < e.replicas; r++) {
+					int peerId = in.readInt();
+					e.locations.set(chunkId * e.replicas + r, peerId);
+					if (r == 0 && peerId != NO_PEER) e.stored.incrementAndGet();
+				}
+			}
+			install(e);
+			if (committed) commit(e);
+			for (int chunkId = 0; hashes != null && chunkId < e.numChunks; chunkId++) {
+				if (e.replica(chunkId, 0) != NO_PEER) indexContent(e, chunkId);
+			}
+		}
+	}
+
+	private static String key(String owner, String fileName) {
+		return owner + ":" + fileName;
+	}
+}
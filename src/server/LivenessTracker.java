@@ -0,0 +1,122 @@
+package src.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Heartbeat deadlines kept in a hashed timer wheel. Each slot is one tick wide and holds a doubly
+ * linked list of the peers whose deadline falls in that tick, so a heartbeat just moves one node to
+ * a later slot and a tick only visits the peers that actually expire in it. A peer fires once when
+ * it expires and is not tracked again until its next heartbeat.
+ */
+class LivenessTracker implements AutoCloseable {
+	private static final class Node {
+		final String name;
+		long deadlineTick;
+		Node prev, next;
+
+		Node(String name) {
+			this.name = name;
+		}
+	}
+
+	private final long tickMs;
+	private final long timeoutTicks;
+	private final Node[] wheel; // slot -> head of its list
+	private final Map<String, Node> nodes = new HashMap<>();
+	private final Consumer<String> onExpire;
+	private long currentTick;
+	private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "heartbeat-monitor");
+		t.setDaemon(true);
+		return t;
+	});
+
+	LivenessTracker(long timeoutMs, long tickMs, Consumer<String> onExpire) {
+		this.tickMs = tickMs;
+		this.timeoutTicks = (timeoutMs + tickMs - 1) / tickMs;
+		this.wheel = new Node[(int) timeoutTicks + 1]; // one rotation covers the longest deadline
+		this.onExpire = onExpire;
+		this.currentTick = System.currentTimeMillis() / tickMs;
+	}
+
+	void start() {
+		ticker.scheduleAtFixedRate(() -> advance(System.currentTimeMillis()), tickMs, tickMs, TimeUnit.MILLISECONDS);
+	}
+
+	/** (Re)arms name's deadline one timeout from now. */
+	synchronized void touch(String name) {
+		Node node = nodes.get(name);
+		if (node == null) {
+			node = new Node(name);
+			nodes.put(name, node);
+		} else {
+			unlink(node);
+		}
+		node.deadlineTick = currentTick + timeoutTicks;
+		link(node);
+	}
+
+	/** Stops tracking name, e.g. after it deregistered. */
+	synchronized void remove(String name) {
+		Node node = nodes.remove(name);
+		if (node != null) unlink(node);
+	}
+
+	/** Fires onExpire for every peer whose deadline passed by now. */
+	void advance(long now) {
+		long targetTick = now / tickMs;
+		while (true) {
+			Node expired;
+			synchronized (this) {
+				if (currentTick >= targetTick) return;
+				currentTick++;
+				int slot = (int) (currentTick % wheel.length);
+				expired = wheel[slot];
+				wheel[slot] = null;
+				for (Node n = expired; n != null; n = n.next) {
+					nodes.remove(n.name);
+				}
+			}
+			//callbacks run outside the lock so they may call touch/remove
+			for (Node n = expired; n != null; ) {
+				Node next = n.next;
+				n.prev = n.next = null;
+				try {
+					onExpire.accept(n.name);
+				} catch (RuntimeException e) {
+					System.err.printf("[HEARTBEAT] Expiry handler failed for '%s': %s%n", n.name, e);
+				}
+				n = next;
+			}
+		}
+	}
+
+	private void link(Node node) {
+		int slot = (int) (node.deadlineTick % wheel.length);
+		node.prev = null;
+		node.next = wheel[slot];
+		if (node.next != null) node.next.prev = node;
+		wheel[slot] = node;
+	}
+
+	private void unlink(Node node) {
+		if (node.prev != null) {
+			node.prev.next = node.next;
+		} else {
+			int slot = (int) (node.deadlineTick % wheel.length);
+			if (wheel[slot] == node) wheel[slot] = node.next;
+		}
+		if (node.next != null) node.next.prev = node.prev;
+		node.prev = node.next = null;
+	}
+
+	@Override
+	public void close() {
+		ticker.shutdownNow();
+	}
+}
@@ -0,0 +1,232 @@
+package src.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import src.peer.PeerData;
+
+/**
+ * Chooses the storage peers for each chunk with power-of-two-choices: for every replica two random
+ * candidates are compared and the one with more free capacity per unit of load wins. A peer's free
+ * space is its registered capacity less the bytes it reports in heartbeats and less the charges of
+ * uploads placed on it since. Every placement is charged straight away, so the chunks of one plan
+ * spread out instead of piling onto whichever peer happened to look best when the request arrived.
+ * A charge lasts until the peer's heartbeats can account for it: it is settled when its upload is
+ * committed and dropped at the next heartbeat, and released at once when the upload is abandoned,
+ * superseded or retired.
+ */
+class PlacementEngine {
+	private static final long DEFAULT_CAPACITY_BYTES = 1024L * 1024 * 1024; // when REGISTER carries no parsable size
+	private static final long OPEN_CHARGE_TTL_MS = 60 * 60 * 1000; // an upload that is neither committed nor replaced by then was abandoned
+
+	/** Bytes and chunks one upload placed on one peer that its heartbeats may not account for yet. */
+	private static final class Charge {
+		final long createdAt;
+		long bytes;
+		int chunks;
+		long settledAt; // 0 while the upload is open
+
+		Charge(long createdAt) {
+			this.createdAt = createdAt;
+		}
+	}
+
+	/** What the coordinator knows about one storage peer's capacity, load and liveness. */
+	private static final class PeerLoad {
+		final long capacityBytes;
+		final Map<Integer, Charge> charges = new HashMap<>(); // by upload id, guarded by this
+		long chargedBytes; // totals over charges, guarded by this
+		int chargedChunks;
+		volatile long reportedBytes;
+		volatile int reportedChunks;
+		volatile long lastSeen;
+
+		PeerLoad(long capacityBytes, long now) {
+			this.capacityBytes = capacityBytes;
+			this.lastSeen = now;
+		}
+
+		synchronized long freeBytes() {
+			return capacityBytes - reportedBytes - chargedBytes;
+		}
+
+		//higher is better: free space per chunk already on (or headed to) the peer, halved once it goes quiet
+		synchronized double score(long now, long timeoutMs) {
+			double load = 1 + reportedChunks + chargedChunks;
+			double liveness = now - lastSeen > timeoutMs / 2 ? 0.5 : 1.0;
+			return freeBytes() / load * liveness;
+		}
+
+		//takes the space if the peer still has it
+		synchronized boolean charge(int uploadId, int bytes, long now, boolean settled) {
+			if (freeBytes() < bytes) return false;
+			Charge c = charges.get(uploadId);
+			if (c == null) {
+				c = new Charge(now);
+				charges.put(uploadId, c);
+				if (settled) c.settledAt = now;
+			} else if (settled && c.settledAt != 0) {
+				c.settledAt = now; // an open upload's charge stays open
+			}
+			c.bytes += bytes;
+			c.chunks++;
+			chargedBytes += bytes;
+			chargedChunks++;
+			return true;
+		}
+
+		synchronized void settle(int uploadId, long now) {
+			Charge c = charges.get(uploadId);
+			if (c != null) c.settledAt = now;
+		}
+
+		synchronized void release(int uploadId) {
+			Charge c = charges.remove(uploadId);
+			if (c != null) drop(c);
+		}
+
+		//the peer's own count now covers the chunks of settled uploads, and open ones past the TTL were abandoned
+		synchronized void report(long bytes, int chunks, long now) {
+			reportedBytes = bytes;
+			reportedChunks = chunks;
+			Iterator<Charge> it = charges.values().iterator();
+			while (it.hasNext()) {
+				Charge c = it.next();
+				if (c.settledAt != 0 ? c.settledAt < now : now - c.createdAt > OPEN_CHARGE_TTL_MS) {
+					it.remove();
+					drop(c);
+				}
+			}
+		}
+
+		private void drop(Charge c) {
+			chargedBytes -= c.bytes;
+			chargedChunks -= c.chunks;
+		}
+	}
+
+	private final Map<String, PeerLoad> loads = new ConcurrentHashMap<>();
+	private final long timeoutMs;
+
+	PlacementEngine(long timeoutMs) {
+		this.timeoutMs = timeoutMs;
+	}
+
+	void onRegister(PeerData pd) {
+		loads.put(pd.getName(), new PeerLoad(parseCapacity(pd.getStorage()), System.currentTimeMillis()));
+	}
+
+	void onDeregister(String name) {
+		loads.remove(name);
+	}
+
+	/** storedBytes is -1 for peers whose heartbeat does not carry it; their charges are only released explicitly. */
+	void onHeartbeat(String name, int numChunks, long storedBytes, long now) {
+		PeerLoad load = loads.get(name);
+		if (load == null) return;
+		load.lastSeen = now;
+		if (storedBytes >= 0) load.report(storedBytes, numChunks, now);
+		else load.reportedChunks = numChunks;
+	}
+
+	/** uploadId was committed: its chunks are on the peers, whose next heartbeats report them. */
+	void settle(int uploadId) {
+		long now = System.currentTimeMillis();
+		for (PeerLoad load : loads.values()) load.settle(uploadId, now);
+	}
+
+	/** uploadId was abandoned, superseded or retired, or its plan was never handed out. */
+	void release(int uploadId) {
+		for (PeerLoad load : loads.values()) load.release(uploadId);
+	}
+
+	/**
+	 * Picks up to replicas distinct storage peers for each of numChunks chunks of chunkSize bytes
+	 * among candidates and charges them to uploadId. Free space is checked again for every chunk,
+	 * so plan[chunkId] holds min(replicas, peers that still have room) peers and later rows may be
+	 * shorter than the first. Peers that have timed out are skipped. Returns null when some chunk
+	 * fits nowhere; the charges already made stay with uploadId until it is released.
+	 */
+	PeerData[][] place(int uploadId, List<PeerData> candidates, int numChunks, int replicas, int chunkSize) {
+		return place(uploadId, candidates, numChunks, replicas, chunkSize, false);
+	}
+
+	private PeerData[][] place(int uploadId, List<PeerData> candidates, int numChunks, int replicas, int chunkSize, boolean settled) {
+		long now = System.currentTimeMillis();
+		List<PeerData> eligible = new ArrayList<>();
+		List<PeerLoad> eligibleLoads = new ArrayList<>();
+		for (PeerData pd : candidates) {
+			PeerLoad load = loads.get(pd.getName());
+			if (load == null || now - load.lastSeen > timeoutMs) continue;
+			eligible.add(pd);
+			eligibleLoads.add(load);
+		}
+
+		int n = eligible.size();
+		int[] order = new int[n];
+		PeerData[][] plan = new PeerData[numChunks][];
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		for (int chunkId = 0; chunkId < numChunks; chunkId++) {
+			//order[0..m) holds the peers that can still fit the chunk after everything charged so far
+			int m = 0;
+			for (int i = 0; i < n; i++) {
+				if (eligibleLoads.get(i).freeBytes() >= chunkSize) order[m++] = i;
+			}
+			int k = Math.min(replicas, m);
+			PeerData[] row = new PeerData[k];
+			int picked = 0;
+			//order[0..picked) holds the replicas already picked for this chunk; sample the rest
+			while (picked < k && picked < m) {
+				int pick = picked + rnd.nextInt(m - picked);
+				if (m - picked > 1) {
+					int other = picked + rnd.nextInt(m - picked - 1);
+					if (other >= pick) other++;
+					if (eligibleLoads.get(order[other]).score(now, timeoutMs) > eligibleLoads.get(order[pick]).score(now, timeoutMs)) pick = other;
+				}
+				int tmp = order[picked]; order[picked] = order[pick]; order[pick] = tmp;
+				if (eligibleLoads.get(order[picked]).charge(uploadId, chunkSize, now, settled)) {
+					row[picked] = eligible.get(order[picked]);
+					picked++;
+				} else {
+					order[picked] = order[--m]; // another plan took its room in the meantime
+				}
+			}
+			if (picked == 0) return null;
+			plan[chunkId] = picked < k ? Arrays.copyOf(row, picked) : row;
+		}
+		return plan;
+	}
+
+	/**
+	 * One new home for a chunk of uploadId being re-replicated, or null if no candidate can take it.
+	 * The copy is made right away, so its charge is settled from the start.
+	 */
+	PeerData placeReplica(int uploadId, List<PeerData> candidates, int chunkSize) {
+		PeerData[][] plan = place(uploadId, candidates, 1, 1, chunkSize, true);
+		return plan != null ? plan[0][0] : null;
+	}
+
+	//REGISTER sends capacity like "1024MB"; plain numbers are bytes
+	static long parseCapacity(String storage) {
+		if (storage == null) return DEFAULT_CAPACITY_BYTES;
+		String s = storage.trim().toUpperCase();
+		long unit = 1;
+		if (s.endsWith("TB")) unit = 1L << 40;
+		else if (s.endsWith("GB")) unit = 1L << 30;
+		else if (s.endsWith("MB")) unit = 1L << 20;
+		else if (s.endsWith("KB")) unit = 1L << 10;
+		if (unit > 1) s = s.substring(0, s.length() - 2);
+		else if (s.endsWith("B")) s = s.substring(0, s.length() - 1);
+		try {
+			long value = Long.parseLong(s.trim());
+			return value > 0 ? value * unit : DEFAULT_CAPACITY_BYTES;
+		} catch (NumberFormatException e) {
+			return DEFAULT_CAPACITY_BYTES;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package src.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import src.peer.PeerData;
+
+/**
+ * Restores the replication factor of chunks whose holder died. Lost replicas are queued and drained
+ * by a token bucket of recovery bytes per second, so a dead peer with lots of data cannot starve
+ * foreground backups. Each repair asks a surviving replica, over its TCP chunk port, to push the
+ * chunk to a new peer:
+ *
+ *   REPLICATE RQ# File_Name Chunk_ID Upload_ID Target_IP Target_TCP_Port [Content_Hash]
+ *
+ * The new holder then reports a normal STORE_ACK, which adds it to the chunk table. Content-defined
+ * chunks that share a hash are one piece of stored content, so all of them that lost a replica wait
+ * on a single repair; the one copy is then recorded for each of them.
+ */
+class ReplicationScheduler implements AutoCloseable {
+	private static final long TICK_MS = 100;
+	private static final int CONNECT_TIMEOUT_MS = 2000;
+	private static final long VERIFY_AFTER_MS = 30000; // a repair whose STORE_ACK has not arrived by then is retried
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** Records a replica the scheduler added to the chunk table on its own, so it can be logged. */
+	interface ReplicaCopied {
+		void copied(ChunkTable.FileEntry entry, int chunkId, String peerName);
+	}
+
+	private static final class Lost {
+		final ChunkTable.FileEntry entry;
+		final int chunkId;
+
+		Lost(ChunkTable.FileEntry entry, int chunkId) {
+			this.entry = entry;
+			this.chunkId = chunkId;
+		}
+	}
+
+	private static final class Repair {
+		final String hash;        // content-defined chunks only
+		final List<Lost> chunks;  // every chunk with this content that lost a replica; guarded by byHash
+		final int attempt;
+		final long bytes;
+		Lost copying;             // the chunk the last REPLICATE went out for
+
+		Repair(String hash, List<Lost> chunks, int attempt) {
+			this.hash = hash;
+			this.chunks = chunks;
+			this.attempt = attempt;
+			this.bytes = chunks.get(0).entry.length(chunks.get(0).chunkId);
+		}
+	}
+
+	private final ChunkTable table;
+	private final PlacementEngine placement;
+	private final Map<String, PeerData> peers;
+	private final LongSupplier rqSource;
+	private final long bytesPerSecond;
+	private final ReplicaCopied onCopied;
+	private final Queue<Repair> queue = new ConcurrentLinkedQueue<>();
+	private final Map<String, Repair> byHash = new HashMap<>(); // content hash -> its repair, queued or waiting for the STORE_ACK
+	private long tokens; // only touched by the scheduler thread
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "re-replication");
+		t.setDaemon(true);
+		return t;
+	});
+
+	ReplicationScheduler(ChunkTable table, PlacementEngine placement, Map<String, PeerData> peers,
+			LongSupplier rqSource, long bytesPerSecond, ReplicaCopied onCopied) {
+		this.table = table;
+		this.placement = placement;
+		this.peers = peers;
+		this.rqSource = rqSource;
+		this.bytesPerSecond = bytesPerSecond;
+		this.onCopied = onCopied;
+		this.tokens = bytesPerSecond;
+	}
+
+	void start() {
+		scheduler.scheduleAtFixedRate(this::drain, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Forgets every replica held by name and queues each affected chunk for repair, once per content hash.
+	 * onLost also hears about every replica dropped.
+	 */
+	int peerLost(String name, ChunkTable.ReplicaLost onLost) {
+		int lost = table.removePeer(table.internPeer(name), (entry, chunkId) -> {
+			onLost.lost(entry, chunkId);
+			lost(entry, chunkId);
+		});
+		if (lost > 0) {
+			System.out.printf("[REPLICATION] Peer '%s' held %d chunk replica(s); queued for re-replication.%n", name, lost);
+		}
+		return lost;
+	}
+
+	private void lost(ChunkTable.FileEntry entry, int chunkId) {
+		String hash = entry.hash(chunkId);
+		List<Lost> chunks = new ArrayList<>();
+		chunks.add(new Lost(entry, chunkId));
+		if (hash == null) {
+			queue.add(new Repair(null, chunks, 1));
+			return;
+		}
+		synchronized (byHash) {
+			Repair pending = byHash.get(hash);
+			if (pending != null) {
+				pending.chunks.add(chunks.get(0)); // the same bytes are already being copied
+				return;
+			}
+			Repair repair = new Repair(hash, chunks, 1);
+			byHash.put(hash, repair);
+			queue.add(repair);
+		}
+	}
+
+	/**
+	 * A STORE_ACK added peerName as a holder of entry's chunk. If that was the copy a repair is waiting
+	 * for, every other chunk with the same content gets the new holder too.
+	 */
+	void stored(ChunkTable.FileEntry entry, int chunkId, String peerName) {
+		String hash = entry.hash(chunkId);
+		if (hash == null) return;
+		List<Lost> others;
+		synchronized (byHash) {
+			Repair repair = byHash.get(hash);
+			if (repair == null || repair.copying == null || repair.copying.entry != entry || repair.copying.chunkId != chunkId) return;
+			byHash.remove(hash);
+			others = repair.chunks;
+		}
+		int peerId = table.internPeer(peerName);
+		for (Lost other : others) {
+			if (other.entry == entry && other.chunkId == chunkId) continue;
+			if (table.recordChunk(other.entry, other.chunkId, peerId)) onCopied.copied(other.entry, other.chunkId, peerName);
+		}
+	}
+
+	private void drain() {
+		tokens = Math.min(bytesPerSecond, tokens + bytesPerSecond * TICK_MS / 1000);
+		Repair next;
+		//a chunk bigger than the whole bucket may go once the bucket is full, leaving it in debt
+		while ((next = queue.peek()) != null && (tokens >= next.bytes || tokens == bytesPerSecond)) {
+			queue.poll();
+			tokens -= next.bytes;
+			try {
+				repair(next);
+			} catch (RuntimeException e) {
+				System.err.printf("[REPLICATION] Repair of %s chunk %d failed: %s%n", next.chunks.get(0).entry.fileName,
+						next.chunks.get(0).chunkId, e);
+				finish(next);
+			}
+		}
+	}
+
+	private void repair(Repair repair) {
+		//copy the first chunk that is still part of a live backup and still short of replicas
+		Lost lost = null;
+		int count = 0;
+		synchronized (byHash) {
+			for (Lost candidate : repair.chunks) {
+				if (table.byUploadId(candidate.entry.fileId) != candidate.entry) continue; // superseded by a newer backup
+				count = candidate.entry.replicaCount(candidate.chunkId);
+				if (count < candidate.entry.replicas) {
+					lost = candidate;
+					break;
+				}
+			}
+			repair.copying = lost;
+		}
+		if (lost == null) {
+			finish(repair); // superseded or already healed
+			return;
+		}
+		ChunkTable.FileEntry entry = lost.entry;
+		int chunkId = lost.chunkId;
+
+		List<PeerData> sources = new ArrayList<>();
+		Set<String> holders = new HashSet<>();
+		for (int r = 0; r < count; r++) {
+			String name = table.peerName(entry.replica(chunkId, r));
+			holders.add(name);
+			PeerData pd = peers.get(name);
+			if (pd != null) sources.add(pd);
+		}
+		if (sources.isEmpty()) {
+			System.out.printf("[REPLICATION] %s:%s chunk %d has no surviving replica; it cannot be recovered.%n",
+					entry.owner, entry.fileName, chunkId);
+			finish(repair);
+			return;
+		}
+
+		List<PeerData> candidates = new ArrayList<>();
+		for (PeerData pd : peers.values()) {
+			if (!holders.contains(pd.getName()) && !pd.getName().equals(entry.owner) && !"OWNER".equalsIgnoreCase(pd.getRole())) {
+				candidates.add(pd);
+			}
+		}
+		PeerData target = placement.placeReplica(entry.fileId, candidates, entry.length(chunkId));
+		if (target == null) {
+			System.out.printf("[REPLICATION] No peer can take %s chunk %d right now (%d/%d replicas).%n",
+					entry.fileName, chunkId, count, entry.replicas);
+			finish(repair);
+			return;
+		}
+
+		String hash = entry.hash(chunkId); // content-defined chunks live in the peers' content-addressed store
+		String cmd = String.format("REPLICATE %02d %s %d %d %s %d%s\n", rqSource.getAsLong(), entry.fileName, chunkId,
+				entry.fileId, target.getIp().getHostAddress(), target.getTcpPort(), hash != null ? " " + hash : "");
+		for (PeerData source : sources) {
+			try (Socket sock = new Socket()) {
+				sock.connect(new InetSocketAddress(source.getIp(), source.getTcpPort()), CONNECT_TIMEOUT_MS);
+				OutputStream out = sock.getOutputStream();
+				out.write(cmd.getBytes());
+				out.flush();
+				System.out.printf("[REPLICATION] %s chunk %d: %s -> %s%s%n", entry.fileName, chunkId, source.getName(), target.getName(),
+						repair.chunks.size() > 1 ? " (shared by " + repair.chunks.size() + " chunks)" : "");
+				int before = count;
+				scheduler.schedule(() -> verify(repair, entry, chunkId, before), VERIFY_AFTER_MS, TimeUnit.MILLISECONDS);
+				return;
+			} catch (IOException e) {
+				System.out.printf("[REPLICATION] Source %s unreachable for %s chunk %d: %s%n",
+						source.getName(), entry.fileName, chunkId, e.getMessage());
+			}
+		}
+		finish(repair);
+	}
+
+	//Retries a repair whose copy has not shown up in the chunk table, or gives up after MAX_ATTEMPTS
+	private void verify(Repair repair, ChunkTable.FileEntry entry, int chunkId, int before) {
+		synchronized (byHash) {
+			boolean waiting = repair.hash == null ? entry.replicaCount(chunkId) <= before : byHash.get(repair.hash) == repair;
+			if (!waiting) return;
+			if (repair.attempt >= MAX_ATTEMPTS) {
+				finish(repair);
+				return;
+			}
+			Repair retry = new Repair(repair.hash, repair.chunks, repair.attempt + 1);
+			if (repair.hash != null) byHash.put(repair.hash, retry);
+			queue.add(retry);
+		}
+	}
+
+	//The repair is over, so a later loss of the same content starts a new one
+	private void finish(Repair repair) {
+		if (repair.hash == null) return;
+		synchronized (byHash) {
+			byHash.remove(repair.hash, repair);
+		}
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+}
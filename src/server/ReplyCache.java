@@ -0,0 +1,76 @@
+package src.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The replies to recent requests, so a retransmitted request is answered with the original reply
+ * instead of being executed again (a second BACKUP_REQ would start a second upload, a second REGISTER
+ * would be denied). Keys name the sender's UDP endpoint, the command and its 64-bit request id, which
+ * peers never reuse, so a hit is always a retransmission. Entries are dropped in arrival order once
+ * they are older than the peers' whole retry window or the cache holds too many reply bytes.
+ */
+class ReplyCache {
+	/** Returned by begin() while the first copy of a request is still being handled. */
+	static final byte[] IN_PROGRESS = new byte[0];
+
+	private static final class Entry {
+		final long createdAt;
+		byte[] reply = IN_PROGRESS;
+
+		Entry(long createdAt) {
+			this.createdAt = createdAt;
+		}
+	}
+
+	private final long ttlMs;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+	private long bytes;
+
+	ReplyCache(long ttlMs, long maxBytes) {
+		this.ttlMs = ttlMs;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Registers a request. Returns null if it is new (it is now in progress and must be completed or
+	 * abandoned), IN_PROGRESS if its first copy is still being handled, or else the cached reply.
+	 */
+	synchronized byte[] begin(String key, long now) {
+		evict(now);
+		Entry e = entries.get(key);
+		if (e != null) return e.reply;
+		entries.put(key, new Entry(now));
+		return null;
+	}
+
+	/** Records the reply to an in-progress request; reply is left untouched. */
+	synchronized void complete(String key, ByteBuffer reply) {
+		Entry e = entries.get(key);
+		if (e == null || e.reply != IN_PROGRESS) return;
+		byte[] copy = new byte[reply.remaining()];
+		reply.get(reply.position(), copy);
+		e.reply = copy;
+		bytes += copy.length;
+	}
+
+	/** Forgets a request that finished without a reply, so a retransmission is handled again. */
+	synchronized void abandon(String key) {
+		Entry e = entries.get(key);
+		if (e != null && e.reply == IN_PROGRESS) entries.remove(key);
+	}
+
+	private void evict(long now) {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next().getValue();
+			if (now - e.createdAt < ttlMs && bytes <= maxBytes) break;
+			if (e.reply == IN_PROGRESS && now - e.createdAt < ttlMs) break; // its handler is still running
+			bytes -= e.reply.length;
+			it.remove();
+		}
+	}
+}
@@ -1,427 +1,757 @@
 package src.server;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import src.peer.ControlFrame;
 import src.peer.PeerData;
 
 public class Server {
-	private static HashMap<String, PeerData> peers;
-	private static HashMap<String, java.util.List<String>> backupTable; // {"owner:filename" -> ["peer:chunkID", ...]}
-	private static int serverRqCounter = 0;
+	//All registry and backup state is shared by the worker threads, so every map is concurrent
+	private static final Map<String, PeerData> peers = new ConcurrentHashMap<>();
+	private static final Map<InetSocketAddress, PeerData> peersByAddr = new ConcurrentHashMap<>(); // registered UDP endpoint -> peer
+	private static final ChunkTable chunkTable = new ChunkTable(); // owner:filename -> layout and peer ids of every chunk replica
+	private static final AtomicLong serverRqCounter = new AtomicLong(0);
 	// Heartbeat tracking: last received time (server clock) and reported chunk counts
-	private static java.util.Map<String, Long> lastHeartbeat = new java.util.concurrent.ConcurrentHashMap<>();
-	private static java.util.Map<String, Integer> heartbeatChunkCounts = new java.util.concurrent.ConcurrentHashMap<>();
-	private static final long HEARTBEAT_TIMEOUT_MS = 60000; // 60s timeout
-	
-	private static int nextServerRq() {
-		serverRqCounter = (serverRqCounter % 99) + 1;
-		return serverRqCounter;
-	}
-	
+	private static final Map<String, Long> lastHeartbeat = new ConcurrentHashMap<>();
+	private static final long HEARTBEAT_TIMEOUT_MS = 180000; // 3 missed heartbeats (peers send one every 60s)
+	private static final PlacementEngine placement = new PlacementEngine(HEARTBEAT_TIMEOUT_MS);
+	private static final int DEFAULT_REPLICAS = 2;
+	private static final int MAX_REPLICAS = 5;
+	private static final long RECOVERY_BYTES_PER_SEC = 4L * 1024 * 1024; // re-replication budget, leaves room for foreground backups
+	private static final int MIN_CHUNK_SIZE = 4096;
+	private static final int MAX_CHUNKS = 1024; // keeps the BACKUP_PLAN datagram well under 64KB
+	private static final int MAX_CDC_CHUNKS = 512; // content-defined plans also carry a len:hash manifest per chunk
+	private static final ThreadLocal<StringBuilder> planBuilder = ThreadLocal.withInitial(() -> new StringBuilder(4096));
+	private static final int WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	//Datagrams are received straight into pooled direct frames and replies are encoded into per-thread direct
+	//buffers, so a heartbeat or ack is handled without re-parsing, copying or allocating the message
+	private static final boolean REUSE_PORT = reusePortSupported();
+	private static final int RECEIVER_THREADS = REUSE_PORT ? Math.max(1, WORKER_THREADS / 2) : 1;
+	private static final int RECEIVE_BATCH = 64; // datagrams drained per wakeup before selecting again
+	private static final int RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024;
+	private static final int POOLED_FRAMES = WORKER_THREADS * 16; // 64KB each, bounds the datagrams in flight
+	//binary requests that peers retransmit until answered; a retransmission gets the cached reply instead of running again
+	private static final Set<String> RETRANSMITTED = Set.of("REGISTER", "DE-REGISTER", "BACKUP_REQ", "BACKUP_DONE", "RESTORE_REQ");
+	private static final ReplyCache replies = new ReplyCache(60000, 16L * 1024 * 1024); // outlasts a peer's ~12s retry window
+	private static final ThreadLocal<String> replyKey = new ThreadLocal<>(); // cache key of the request a worker is answering
+	private static final ThreadLocal<InetSocketAddress> replyTo = new ThreadLocal<>();
+	private static final BlockingQueue<ControlFrame> framePool = new ArrayBlockingQueue<>(POOLED_FRAMES);
+	private static final ThreadLocal<ControlFrame.Encoder> replyEncoder =
+			ThreadLocal.withInitial(() -> new ControlFrame.Encoder(ControlFrame.MAX_DATAGRAM, true));
+	private static final Set<String> binaryPeers = ConcurrentHashMap.newKeySet(); // peers that speak the binary control format
+
+	//One handler per command; the receive loop only decodes the datagram and hands it to a worker
+	@FunctionalInterface
+	private interface CommandHandler {
+		void handle(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) throws IOException;
+	}
+
+	private static final Map<String, CommandHandler> handlers = new HashMap<>();
+	static {
+		handlers.put("LIST", Server::handleList);
+		handlers.put("HEARTBEAT", Server::handleHeartbeat);
+		handlers.put("REGISTER", Server::handleRegister);
+		handlers.put("DE-REGISTER", Server::handleDeregister);
+		handlers.put("BACKUP_REQ", Server::handleBackupReq);
+		handlers.put("CHUNK_OK", Server::handleChunkAck);
+		handlers.put("CHUNK_ERROR", Server::handleChunkAck);
+		handlers.put("STORE_ACK", Server::handleStoreAck);
+		handlers.put("BACKUP_DONE", Server::handleBackupDone);
+		handlers.put("RESTORE_OK", Server::handleRestoreOk);
+		handlers.put("RESTORE_FAIL", Server::handleRestoreFail);
+		handlers.put("RESTORE_REQ", Server::handleRestoreReq);
+		handlers.put("CHUNKS_DELETED", Server::handleChunksDeleted);
+	}
+
+	//every registry and chunk table change is logged so a restart can rebuild them
+	private static final StateLog stateLog = new StateLog(Paths.get("server-state"), peers, chunkTable);
+	private static final ReplicationScheduler replication = new ReplicationScheduler(chunkTable, placement, peers,
+			Server::nextServerRq, RECOVERY_BYTES_PER_SEC, stateLog::store);
+	//deletes the chunks no backup refers to any more from the peers that store them
+	private static final ChunkReaper reaper = new ChunkReaper(chunkTable, peers, Server::nextServerRq);
+	//each peer's deadline sits in a timer wheel; a heartbeat re-arms it and expiry fires once per silence
+	private static final LivenessTracker liveness = new LivenessTracker(HEARTBEAT_TIMEOUT_MS, 1000, Server::peerTimedOut);
+
+	//called by the liveness tracker once a peer has been silent for HEARTBEAT_TIMEOUT_MS: it is deregistered, so it is no
+	//longer offered as a placement or repair target. If it was only cut off, its next heartbeat is answered with
+	//HEARTBEAT-DENIED and it registers again
+	private static void peerTimedOut(String name) {
+		PeerData removed = peers.remove(name);
+		if (removed == null) return;
+		Long last = lastHeartbeat.get(name);
+		long now = System.currentTimeMillis();
+		System.out.printf("[HEARTBEAT] Peer '%s' timed out (last=%s). Deregistering it and re-replicating its chunks.%n", name,
+				last != null ? (now - last) + "ms ago" : "never");
+		forgetPeer(removed);
+	}
+
+	//Drops a peer that was just removed from peers from every other index and re-replicates the chunks it held
+	private static void forgetPeer(PeerData removed) {
+		String name = removed.getName();
+		peersByAddr.remove(removed.getUdpAddress(), removed);
+		placement.onDeregister(name);
+		liveness.remove(name);
+		binaryPeers.remove(name);
+		lastHeartbeat.remove(name);
+		stateLog.deregister(name);
+		replication.peerLost(name, (entry, chunkId) -> reaper.dropped(name, entry, chunkId)); // sent if it registers again
+		stateLog.dropPeer(name);
+	}
+
+	private static long nextServerRq() {
+		return serverRqCounter.incrementAndGet();
+	}
+
     public static void main(String[] args) throws IOException {
-    	peers = new HashMap<>();
-    	backupTable = new HashMap<>();
-    	
-        try (DatagramSocket ds = new DatagramSocket(1234)) {
-            byte[] receive = new byte[65535];
-            System.out.println("UDP server listening on port 1234...");
-
-			//start heartbeat monitor thread (simple polling loop)
-			new Thread(() -> {
-				while (true) {
-					try { Thread.sleep(5000); } catch (InterruptedException ie) { return; }
-					long now = System.currentTimeMillis();
-					for (String name : peers.keySet()) {
-						Long last = lastHeartbeat.get(name);
-						if (last != null && now - last > HEARTBEAT_TIMEOUT_MS) {
-							System.out.printf("[HEARTBEAT] Peer '%s' timed out (last=%dms ago). Trigger recovery logic here.%n", name, (now - last));
-							// Placeholder: recovery / replication logic would be invoked here.
-						}
-					}
-				}
-			}, "heartbeat-monitor").start();
-
-            while (true) {
-                DatagramPacket dpReceive = new DatagramPacket(receive, receive.length);
-                ds.receive(dpReceive);
-                String msg = new String(dpReceive.getData(), 0, dpReceive.getLength()).trim();
-				System.out.printf("Server received: '%s' from %s:%d%n", msg, dpReceive.getAddress().getHostAddress(), dpReceive.getPort());
-                if ("bye".equalsIgnoreCase(msg)) {
-                    System.out.println("Client sent bye.....EXITING");
-                    break;
-                }
-                else {
-                	//Read the message and add a new peer to the hashmap so that the server can *track* peers.
-                    String[] parts = msg.split("\\s+");
-
-					if (parts.length == 0) continue;
-					String cmd = parts[0].toUpperCase();
-
-					//query to see what's in the registry
-					if ("LIST".equals(cmd)) {
-						StringBuilder sb = new StringBuilder("PEERS ").append(peers.size());
-						for (PeerData pd : peers.values()) {
-							sb.append(' ') // name ip udp tcp
-							  .append(pd.getName()).append(' ')
-							  .append(pd.getIp().getHostAddress()).append(' ')
-							  .append(pd.getUdpPort()).append(' ')
-							  .append(pd.getTcpPort());
-						}
-						sendSimple(ds, dpReceive, sb.toString());
-						receive = new byte[65535];
-						continue;
-					}
+        ExecutorService workers = Executors.newFixedThreadPool(WORKER_THREADS, r -> {
+            Thread t = new Thread(r, "server-worker");
+            t.setDaemon(true);
+            return t;
+        });
 
-					// heartbeat handling
-					if ("HEARTBEAT".equals(cmd)) {
-						// Expected: HEARTBEAT RQ# Name Number_Chunks Timestamp
-						if (parts.length < 5) {
-							System.out.println("Malformed HEARTBEAT frame: " + msg);
-							receive = new byte[65535];
-							continue;
-						}
-						int rq = safeInt(parts[1]);
-						String name = parts[2];
-						int numChunks = safeInt(parts[3]);
-						long tsClient = safeLong(parts[4]); // currently unused other than logging
-						PeerData pd = peers.get(name);
-						if (pd == null) {
-							System.out.printf("Heartbeat from unknown peer '%s' (rq=%d) ignored.%n", name, rq);
-							receive = new byte[65535];
-							continue;
-						}
-						long now = System.currentTimeMillis();
-						lastHeartbeat.put(name, now);
-						heartbeatChunkCounts.put(name, numChunks);
-						System.out.printf("[HEARTBEAT] name=%s rq=%d chunks=%d clientTs=%d serverTs=%d%n", name, rq, numChunks, tsClient, now);
-						receive = new byte[65535];
-						continue;
-					}
+        recoverState();
 
-					if("DE-REGISTER".equalsIgnoreCase(cmd)) {
-						if (parts.length< 3){
-							sendSimple(ds,dpReceive, "DE-REGISTER-DENIED 00 REASON: Malformed");
-						}else{
-							int rq= safeInt(parts[1]);
-							String name= parts[2];
-							PeerData removed = peers.remove(name);
-							if (removed == null){
-								sendSimple(ds,dpReceive, "DE-REGISTER-DENIED "+rq+" REASON: NotRegistered");
-							} else {
-								System.out.printf("Peer '%s' deregistered. (remaining=%d)%n", name, peers.size());
-								sendSimple(ds,dpReceive, "DE-REGISTERED "+rq);
-							}
-						}
-						receive = new byte[65535];
-						continue;
-					}
+        List<DatagramChannel> channels = new ArrayList<>();
+        CountDownLatch stop = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < RECEIVER_THREADS; i++) channels.add(openChannel());
+            for (int i = 0; i < POOLED_FRAMES; i++) framePool.add(new ControlFrame(ControlFrame.MAX_DATAGRAM, true));
+            System.out.printf("UDP server listening on port 1234 (%d receiver(s)%s, %d worker threads)...%n",
+                    RECEIVER_THREADS, RECEIVER_THREADS > 1 ? " sharing the port" : "", WORKER_THREADS);
 
-					if ("BACKUP_REQ".equalsIgnoreCase(cmd)){
-						//validate msg length
-						if (parts.length < 5) {
-							int rq = parts.length > 1 ? safeInt(parts[1]) : 0;
-							sendSimple(ds, dpReceive, String.format("BACKUP-DENIED %02d REASON: Malformed", rq));
-							receive = new byte[65535];
-							continue;
-						}
-						int rq = safeInt(parts[1]);
-						String fileName = parts[2];
-						long fileSize = safeLong(parts[3]);
-						long checksum = safeLong(parts[4]);
-						// identify the owner
-						String owner = null;
-						for (PeerData pd : peers.values()) {
-							if (pd.getIp().equals(dpReceive.getAddress()) && pd.getUdpPort() == dpReceive.getPort()) {
-								owner = pd.getName();
-								break;
-							}
-						}
-						if (owner == null) {
-							sendSimple(ds, dpReceive, String.format("BACKUP-DENIED %02d REASON: NotRegistered", rq));
-							receive = new byte[65535];
-							continue;
-						}
-						//Select a storage peer not the owner tho
-						PeerData chosen = null;
-						for (PeerData pd : peers.values()) {
-							if (!pd.getName().equals(owner) && !"OWNER".equalsIgnoreCase(pd.getRole())) {
-								chosen = pd; break;
-							}
-						}
-						if (chosen == null) {
-							sendSimple(ds, dpReceive, String.format("BACKUP-DENIED %02d REASON: NoStoragePeer", rq));
-							receive = new byte[65535];
-							continue;
-						}
-					int chunkSize = 4096; //fixed size for now
-					int chunkId = 0; 
-					
-				//Peer list
-				String peerList = "[" + chosen.getName() + "]";
-				String plan = String.format("BACKUP_PLAN %02d %s %s %d", rq, fileName, peerList, chunkSize);
-				System.out.printf("BACKUP_REQ(rq=%02d file=%s size=%d checksum=%d owner=%s) -> %s%n", rq, fileName, fileSize, checksum, owner, plan);
-				sendSimple(ds, dpReceive, plan);
-				
-				//Send STORE_REQ notification to selected storage peer
-				int serverRq = nextServerRq();
-				String storeReq = String.format("STORE_REQ %02d %s %d %s", serverRq, fileName, chunkId, owner);
-				System.out.printf("Sending STORE_REQ to %s: %s%n", chosen.getName(), storeReq);
-				byte[] d = storeReq.getBytes();
-				ds.send(new DatagramPacket(d, d.length, chosen.getIp(), chosen.getUdpPort()));
-				
-				// Initialize backup table entry
-				String backupKey = owner + ":" + fileName;
-				backupTable.put(backupKey, new java.util.ArrayList<>());
-				
-				receive = new byte[65535];
-				continue;
-					}
+			replication.start();
 
-				//CHUNK_OK / CHUNK_ERROR: Forward to owner peer
-				if ("CHUNK_OK".equalsIgnoreCase(cmd) || "CHUNK_ERROR".equalsIgnoreCase(cmd)) {
-					System.out.println(cmd + " received: " + msg);
-					//Extract file name from message to find owner
-					if (parts.length >= 3) {
-						String fileNameAck = parts[2];
-						//Find owner peer for this file
-						PeerData ownerPeer = null;
-						for (String key : backupTable.keySet()) {
-							if (key.endsWith(":" + fileNameAck)) {
-								String ownerName = key.substring(0, key.indexOf(":"));
-								ownerPeer = peers.get(ownerName);
-								break;
-							}
-						}
-						//Forward message to owner
-						if (ownerPeer != null) {
-							byte[] fwdData = msg.getBytes();
-							ds.send(new DatagramPacket(fwdData, fwdData.length, ownerPeer.getIp(), ownerPeer.getUdpPort()));
-							System.out.printf("Forwarded %s to owner %s%n", cmd, ownerPeer.getName());
-						}
+			reaper.start((peer, rq, fileName, uploadId, refs) -> send(channels.get(0), peer.getUdpAddress(),
+					replyEncoder.get().begin("DELETE_CHUNKS", binaryPeers.contains(peer.getName()))
+							.putRq(rq).put(fileName).put(uploadId).put(refs)));
+
+			liveness.start();
+
+            for (int i = 0; i < channels.size(); i++) {
+                DatagramChannel ch = channels.get(i);
+                Thread t = new Thread(() -> receiveLoop(ch, workers, stop), "udp-receiver-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            stop.await();
+        } catch (SocketException e) {
+            System.err.println("Socket error: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (DatagramChannel ch : channels) ch.close();
+            workers.shutdownNow();
+            stateLog.close();
+        }
+	}
+
+	//Every receiver gets its own socket on the port; with SO_REUSEPORT the kernel spreads peers across them
+	private static DatagramChannel openChannel() throws IOException {
+		DatagramChannel ch = DatagramChannel.open();
+		try {
+			if (REUSE_PORT) ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			ch.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES); // absorbs bursts while the frame pool is drained
+			ch.bind(new InetSocketAddress(1234));
+			ch.configureBlocking(false);
+			return ch;
+		} catch (IOException e) {
+			ch.close();
+			throw e;
+		}
+	}
+
+	private static boolean reusePortSupported() {
+		try (DatagramChannel ch = DatagramChannel.open()) {
+			return ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException | UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * One receiver thread: waits for the socket to become readable, then drains up to RECEIVE_BATCH
+	 * datagrams straight into pooled frames before waiting again. When every frame is in use it stops
+	 * reading and lets the socket buffer hold the backlog.
+	 */
+	private static void receiveLoop(DatagramChannel ch, ExecutorService workers, CountDownLatch stop) {
+		try (Selector selector = Selector.open()) {
+			ch.register(selector, SelectionKey.OP_READ);
+			while (true) {
+				selector.select();
+				selector.selectedKeys().clear();
+				for (int n = 0; n < RECEIVE_BATCH; n++) {
+					ControlFrame frame = framePool.take();
+					InetSocketAddress from = (InetSocketAddress) ch.receive(frame.buffer().clear());
+					if (from == null) {
+						framePool.offer(frame); // drained
+						break;
 					}
-					receive = new byte[65535];
-					continue;
-				}
-				
-				//STORE_ACK RQ# File_Name Chunk_ID
-				if ("STORE_ACK".equalsIgnoreCase(cmd)) {
-					if (parts.length >= 4) {
-						String fileNameAck = parts[2];
-						int chunkIdAck = safeInt(parts[3]);
-						//Identify which peer sent this
-						String storagePeerName = null;
-						for (PeerData pd : peers.values()) {
-							if (pd.getIp().equals(dpReceive.getAddress()) && pd.getUdpPort() == dpReceive.getPort()) {
-								storagePeerName = pd.getName();
-								break;
-							}
-						}
-						System.out.printf("STORE_ACK received: file=%s chunk=%d from peer=%s%n", fileNameAck, chunkIdAck, storagePeerName);
-						//Update backup table: find matching owner:filename entry
-						for (String key : backupTable.keySet()) {
-							if (key.endsWith(":" + fileNameAck) && storagePeerName != null) {
-								backupTable.get(key).add(storagePeerName + ":" + chunkIdAck);
-								break;
-							}
-						}
+					int length = frame.buffer().position();
+					if (!frame.decode(length)) {
+						System.out.printf("Undecodable %d byte datagram from %s ignored.%n", length, from);
+						framePool.offer(frame);
+						continue;
 					}
-					receive = new byte[65535];
-					continue;
-				}
-				
-				//BACKUP_DONE RQ# File_Name
-				if ("BACKUP_DONE".equalsIgnoreCase(cmd)) {
-					if (parts.length >= 3) {
-						String fileNameDone = parts[2];
-						String ownerName = null;
-						for (PeerData pd : peers.values()) {
-							if (pd.getIp().equals(dpReceive.getAddress()) && pd.getUdpPort() == dpReceive.getPort()) {
-								ownerName = pd.getName();
-								break;
-							}
+					if (!frame.isBinary()) {
+						System.out.printf("Server received: '%s' from %s:%d%n", frame, from.getAddress().getHostAddress(), from.getPort());
+						if ("BYE".equals(frame.command()) && frame.size() == 1) {
+							System.out.println("Client sent bye.....EXITING");
+							framePool.offer(frame);
+							stop.countDown();
+							return;
 						}
-						System.out.printf("BACKUP_DONE received: file=%s from owner=%s%n", fileNameDone, ownerName);
-					
 					}
-					receive = new byte[65535];
-					continue;
-				}
-
-				//RESTORE_OK RQ# File_Name
-				if ("RESTORE_OK".equalsIgnoreCase(cmd)) {
-					if (parts.length >= 3) {
-						int rq = safeInt(parts[1]);
-						String fileName = parts[2];
-						String ownerName = null;
-						for (PeerData pd : peers.values()) {
-							if (pd.getIp().equals(dpReceive.getAddress()) && pd.getUdpPort() == dpReceive.getPort()) {
-								ownerName = pd.getName();
-								break;
-							}
+					workers.execute(() -> {
+						try {
+							dispatch(ch, from, frame);
+						} finally {
+							framePool.offer(frame);
 						}
-						System.out.printf("RESTORE_OK received: rq=%02d file=%s from owner=%s - Restoration successful%n", rq, fileName, ownerName);
-					}
-					receive = new byte[65535];
-					continue;
+					});
 				}
+			}
+		} catch (ClosedChannelException e) {
+			//server is shutting down
+		} catch (IOException e) {
+			System.err.println("Receiver error: " + e.getMessage());
+			stop.countDown();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
-				//RESTORE_FAIL RQ# File_Name Reason
-				if ("RESTORE_FAIL".equalsIgnoreCase(cmd)) {
-					if (parts.length >= 3) {
-						int rq = safeInt(parts[1]);
-						String fileName = parts[2];
-						String reason = parts.length >= 4 ? parts[3] : "Unknown";
-						String ownerName = null;
-						for (PeerData pd : peers.values()) {
-							if (pd.getIp().equals(dpReceive.getAddress()) && pd.getUdpPort() == dpReceive.getPort()) {
-								ownerName = pd.getName();
-								break;
-							}
-						}
-						System.out.printf("RESTORE_FAIL received: rq=%02d file=%s from owner=%s - Reason: %s%n", rq, fileName, ownerName, reason);
-					}
-					receive = new byte[65535];
-					continue;
+	//Loads the last snapshot plus log tail and rebuilds the indexes derived from the registry
+	private static void recoverState() throws IOException {
+		long start = System.currentTimeMillis();
+		int replayed = stateLog.recover();
+		for (PeerData pd : peers.values()) {
+			peersByAddr.put(pd.getUdpAddress(), pd);
+			placement.onRegister(pd);
+			liveness.touch(pd.getName()); // peers that died while we were down time out and get re-replicated
+		}
+		System.out.printf("[STATE] Recovered %d peer(s), replayed %d log record(s) in %dms.%n",
+				peers.size(), replayed, System.currentTimeMillis() - start);
+	}
+
+	private static void dispatch(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) {
+		String cmd = frame.command();
+		CommandHandler handler = handlers.get(cmd);
+		if (handler == null) {
+			System.out.printf("Unknown command '%s' from %s:%d ignored.%n", cmd, from.getAddress().getHostAddress(), from.getPort());
+			return;
+		}
+		String key = null;
+		try {
+			if (frame.isBinary() && RETRANSMITTED.contains(cmd)) {
+				key = from + "/" + cmd + "/" + frame.longAt(1);
+				byte[] cached = replies.begin(key, System.currentTimeMillis());
+				if (cached != null) {
+					key = null; // owned by the first copy
+					if (cached == ReplyCache.IN_PROGRESS) return; // that copy is still being handled and will be answered
+					ds.send(ByteBuffer.wrap(cached), from);
+					System.out.printf("Retransmitted %s rq=%d from %s answered from the reply cache%n", cmd, frame.longAt(1), from);
+					return;
 				}
-		
-				if ("RESTORE_REQ".equalsIgnoreCase(cmd)) {
-    				if (parts.length < 3) {
-        					int rq = parts.length > 1 ? safeInt(parts[1]) : 0;
-        					sendSimple(ds, dpReceive,
-                			String.format("RESTORE_FAIL %02d %s Malformed", rq,
-                        	(parts.length > 2 ? parts[2] : "UNKNOWN")));
-        					receive = new byte[65535];
-        					continue;}	
-
-    			int rq = safeInt(parts[1]);
-    			String fileName = parts[2];
-
-    			// find which peer is asking (owner)
-    			String owner = null;
-    			for (PeerData pd : peers.values()) {
-        		if (pd.getIp().equals(dpReceive.getAddress())
-                && pd.getUdpPort() == dpReceive.getPort()) {
-            	owner = pd.getName();
-            	break;}
+				replyKey.set(key);
+				replyTo.set(from);
+			}
+			handler.handle(ds, from, frame);
+		} catch (IOException e) {
+			System.err.printf("I/O error handling %s: %s%n", cmd, e.getMessage());
+		} catch (RuntimeException e) {
+			System.err.printf("Malformed %s frame '%s': %s%n", cmd, frame, e);
+		} finally {
+			if (key != null) {
+				replies.abandon(key); // no-op once a reply was recorded
+				replyKey.remove();
+				replyTo.remove();
 			}
+		}
+	}
 
-    	if (owner == null) {
-        		sendSimple(ds, dpReceive,
-                String.format("RESTORE_FAIL %02d %s NotRegistered", rq, fileName));
-        		receive = new byte[65535];
-        		continue;
-    			}
-
-    			String key = owner + ":" + fileName;
-    			java.util.List<String> entries = backupTable.get(key);
-    			if (entries == null || entries.isEmpty()) {
-        		sendSimple(ds, dpReceive,
-                String.format("RESTORE_FAIL %02d %s NoBackupFound", rq, fileName));
-        		receive = new byte[65535];
-        		continue;
-    			}
-
-    			// entries are like "peerName:chunkId"
-    			StringBuilder peerList = new StringBuilder("[");
-    			for (int i = 0; i < entries.size(); i++) {
-        		String entry = entries.get(i);
-        		String peerName = entry.split(":", 2)[0];
-				if (i > 0) peerList.append(',');
-				peerList.append(peerName);
-				}
-				peerList.append("]");
+	//query to see what's in the registry
+	private static void handleList(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) throws IOException {
+		List<PeerData> snapshot = new ArrayList<>(peers.values());
+		ControlFrame.Encoder reply = reply("PEERS", frame).put(snapshot.size());
+		for (PeerData pd : snapshot) {
+			reply.put(pd.getName()) // name ip udp tcp
+			     .put(pd.getIp().getHostAddress())
+			     .put(pd.getUdpPort())
+			     .put(pd.getTcpPort());
+		}
+		send(ds, from, reply);
+	}
+
+	// heartbeat handling
+	private static void handleHeartbeat(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) throws IOException {
+		// Expected: HEARTBEAT RQ# Name Number_Chunks Timestamp [Stored_Bytes]
+		if (frame.size() < 5) {
+			System.out.println("Malformed HEARTBEAT frame: " + frame);
+			return;
+		}
+		long rq = frame.longAt(1);
+		String name = frame.string(2);
+		int numChunks = frame.intAt(3);
+		long tsClient = frame.longAt(4); // currently unused other than logging
+		long storedBytes = frame.size() > 5 ? frame.longAt(5) : -1;
+		PeerData pd = peers.get(name);
+		if (pd == null) {
+			//timed out or deregistered while still running: HEARTBEAT-DENIED RQ# Reason makes it register again
+			System.out.printf("Heartbeat from unknown peer '%s' (rq=%d); asking it to register again.%n", name, rq);
+			send(ds, from, reply("HEARTBEAT-DENIED", frame).putRq(rq).put("REASON:").put("NotRegistered"));
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (frame.isBinary()) binaryPeers.add(name); // also relearned after a server restart
+		lastHeartbeat.put(name, now);
+		placement.onHeartbeat(name, numChunks, storedBytes, now);
+		liveness.touch(name);
+		System.out.printf("[HEARTBEAT] name=%s rq=%d chunks=%d bytes=%d clientTs=%d serverTs=%d%n", name, rq, numChunks, storedBytes, tsClient, now);
+	}
+
+	//REGISTER RQ# Name Role IP UDP_Port TCP_Port Storage
+	private static void handleRegister(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) throws IOException {
+		if (frame.size() < 8) {
+			long rq = frame.longAt(1);
+			denyRegistration(ds, from, frame, rq, "REASON: Malformed");
+			return;
+		}
+		long rq = frame.longAt(1);
+		String name = frame.string(2);
+		String role = frame.string(3);
+
+		InetAddress ip = InetAddress.getByName(frame.string(4));
+
+		int udpPort = frame.intAt(5);
+		int tcpPort = frame.intAt(6);
+		String storage = frame.string(7);
+		if (udpPort <= 0 || udpPort > 65535 || tcpPort <= 0 || tcpPort > 65535) {
+			denyRegistration(ds, from, frame, rq, "REASON: Malformed");
+			return;
+		}
+
+		PeerData newPeer = new PeerData(name, role, ip, udpPort, tcpPort, storage);
+		if (peers.putIfAbsent(name, newPeer) == null) {
+			peersByAddr.put(newPeer.getUdpAddress(), newPeer);
+			placement.onRegister(newPeer);
+			liveness.touch(name);
+			stateLog.register(newPeer);
+			if (frame.isBinary()) binaryPeers.add(name);
+			System.out.printf("Accepting registration: name=%s role=%s udpPort=%d tcpPort=%d storage=%s (total peers=%d)%n", name, role, udpPort, tcpPort, storage, peers.size());
+			acceptRegistration(ds, from, frame, rq);
+			System.out.println("Current peers: " + peers.keySet());
+		}
+		//Map DOES already have this peer stored, don't add it to map and deny registration
+		else {
+			System.out.printf("Denying registration for existing peer name=%s (total peers=%d)%n", name, peers.size());
+			denyRegistration(ds, from, frame, rq, "REASON: Peer registered in server");
+		}
+	}
+
+	//DE-REGISTER RQ# Name
+	private static void handleDeregister(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) throws IOException {
+		if (frame.size() < 3) {
+			send(ds, from, reply("DE-REGISTER-DENIED", frame).putRq(0).putWords("REASON: Malformed"));
+			return;
+		}
+		long rq = frame.longAt(1);
+		String name = frame.string(2);
+		PeerData removed = peers.remove(name);
+		if (removed == null) {
+			send(ds, from, reply("DE-REGISTER-DENIED", frame).put(rq).putWords("REASON: NotRegistered"));
+		} else {
+			forgetPeer(removed);
+			System.out.printf("Peer '%s' deregistered. (remaining=%d)%n", name, peers.size());
+			send(ds, from, reply("DE-REGISTERED", frame).put(rq));
+		}
+	}
+
+	//BACKUP_REQ RQ# File_Name File_Size Checksum [Replicas [CDC len:hash,len:hash,...]]
+	private static void handleBackupReq(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) throws IOException {
+		//validate msg length
+		if (frame.size() < 5) {
+			sendBackupDenied(ds, from, frame, frame.longAt(1), "Malformed");
+			return;
+		}
+		long rq = frame.longAt(1);
+		String fileName = frame.string(2);
+		long fileSize = frame.longAt(3);
+		long checksum = frame.longAt(4);
+		int replicas = frame.intAt(5) > 0 ? Math.min(MAX_REPLICAS, frame.intAt(5)) : DEFAULT_REPLICAS;
+		//content-defined mode: the owner already cut the file and sends each chunk's length and content hash
+		int[] lengths = null;
+		String[] hashes = null;
+		if (frame.size() > 6 && "CDC".equalsIgnoreCase(frame.string(6))) {
+			String[] entries = frame.size() > 7 ? frame.string(7).split(",") : new String[0];
+			lengths = new int[entries.length];
+			hashes = new String[entries.length];
+			if (entries.length > MAX_CDC_CHUNKS || !parseManifest(entries, fileSize, lengths, hashes)) {
+				sendBackupDenied(ds, from, frame, rq, "Malformed");
+				return;
+			}
+		}
+		// identify the owner
+		String owner = peerNameAt(from);
+		if (owner == null) {
+			sendBackupDenied(ds, from, frame, rq, "NotRegistered");
+			return;
+		}
+		//Collect every storage peer that is not the owner
+		List<PeerData> candidates = new ArrayList<>();
+		for (PeerData pd : peers.values()) {
+			if (!pd.getName().equals(owner) && !"OWNER".equalsIgnoreCase(pd.getRole())) {
+				candidates.add(pd);
+			}
+		}
+		if (candidates.isEmpty()) {
+			sendBackupDenied(ds, from, frame, rq, "NoStoragePeer");
+			return;
+		}
+		int chunkSize;
+		int numChunks;
+		PeerData[][] chosen;
+		boolean[][] held = null; // CDC only: replicas that already store the chunk's content and need no transfer
+		int uploadId = chunkTable.nextUploadId(); // the plan's placements are charged to it
+		if (hashes == null) {
+			chunkSize = chunkSizeFor(fileSize);
+			numChunks = fileSize <= 0 ? 1 : (int) ((fileSize + chunkSize - 1) / chunkSize);
+			//Spread the chunk replicas by free capacity, load and liveness
+			chosen = placement.place(uploadId, candidates, numChunks, replicas, chunkSize);
+		} else {
+			numChunks = hashes.length;
+			chunkSize = (int) Math.max(1, (fileSize + numChunks - 1) / numChunks); // average, the real lengths are in the manifest
+			replicas = Math.min(replicas, candidates.size());
+			held = new boolean[numChunks][];
+			chosen = placeDeduplicated(uploadId, candidates, lengths, hashes, replicas, held);
+		}
+		if (chosen == null) {
+			placement.release(uploadId);
+			sendBackupDenied(ds, from, frame, rq, "NoCapacity");
+			return;
+		}
+
+		// Initialize the pending upload before the plan goes out so that no STORE_ACK can miss it;
+		// the file's previous backup stays restorable until this one is committed by BACKUP_DONE
+		if (hashes == null) {
+			replicas = 0; // fewer peers with room than requested replicas
+			for (PeerData[] row : chosen) replicas = Math.max(replicas, row.length);
+		}
+		ChunkTable.FileEntry abandoned = chunkTable.pending(owner, fileName);
+		ChunkTable.FileEntry upload = chunkTable.begin(uploadId, owner, fileName, fileSize, chunkSize, numChunks, replicas, lengths, hashes);
+		stateLog.begin(upload);
+		if (abandoned != null) {
+			placement.release(abandoned.fileId); // its chunks will never be committed
+			reaper.retire(abandoned);
+		}
 
-				String plan = String.format("RESTORE_PLAN %02d %s %s", rq, fileName, peerList);
-				System.out.println("Sending: " + plan);
-				sendSimple(ds, dpReceive, plan);
-				receive = new byte[65535];
-				continue;
+		//One list entry per chunk, its replicas separated by '|'; '=' marks a replica that already holds the content
+		StringBuilder peerList = new StringBuilder("[");
+		Set<String> distinct = new HashSet<>();
+		int skipped = 0;
+		for (int chunkId = 0; chunkId < numChunks; chunkId++) {
+			if (chunkId > 0) peerList.append(',');
+			for (int r = 0; r < chosen[chunkId].length; r++) {
+				String name = chosen[chunkId][r].getName();
+				if (r > 0) peerList.append('|');
+				if (held != null && held[chunkId][r]) {
+					peerList.append('=');
+					chunkTable.recordChunk(upload, chunkId, chunkTable.internPeer(name));
+					stateLog.store(upload, chunkId, name);
+					skipped++;
 				}
-				
-                	int rq = Integer.parseInt(parts[1]);
-                	String name = parts[2];
-                	String role = parts[3];
-
-                	InetAddress ip = InetAddress.getByName(parts[4]);
-
-                	int udpPort = Integer.parseInt(parts[5]);
-                	int tcpPort = Integer.parseInt(parts[6]);
-                	String storage = parts[7]; 
-
-                	//Reset the receive buffer in case another registration comes
-					receive = new byte[65535];
-					
-					if (!peers.containsKey(name)) {
-						PeerData newPeer = new PeerData(name, role, ip, udpPort, tcpPort, storage);
-						peers.put(name, newPeer);
-						System.out.printf("Accepting registration: name=%s role=%s udpPort=%d tcpPort=%d storage=%s (total peers=%d)%n", name, role, udpPort, tcpPort, storage, peers.size());
-						acceptRegistration(ds, dpReceive.getAddress(), dpReceive.getPort(), msg, 5678, 1024, rq);
-						System.out.println("Current peers: " + peers.keySet());
-					}
-					//Hashmap DOES already have this peer stored, don't add it to map and deny registration
-					else {
-						System.out.printf("Denying registration for existing peer name=%s (total peers=%d)%n", name, peers.size());
-						denyRegistration(ds, dpReceive.getAddress(), dpReceive.getPort(), msg, 5678, 1024, rq,
-								"REASON: Peer registered in server");
-					}
+				peerList.append(name);
+				distinct.add(name);
+			}
+		}
+		peerList.append(']');
+		ControlFrame.Encoder plan = reply("BACKUP_PLAN", frame).putRq(rq).put(fileName).put(peerList)
+				.put(chunkSize).put(numChunks).put(upload.fileId);
+		if (hashes != null) plan.put("CDC");
+		System.out.printf("BACKUP_REQ(rq=%02d file=%s size=%d checksum=%d owner=%s) -> upload %d: %d chunks of %d bytes x%d replicas over %d peers%s%n",
+				rq, fileName, fileSize, checksum, owner, upload.fileId, numChunks, chunkSize, replicas, distinct.size(),
+				hashes != null ? String.format(", %d replica(s) already stored", skipped) : "");
+		send(ds, from, plan);
+
+		//Send a STORE_REQ notification to every storage peer that will receive a chunk
+		for (int chunkId = 0; chunkId < numChunks; chunkId++) {
+			for (int r = 0; r < chosen[chunkId].length; r++) {
+				if (held != null && held[chunkId][r]) continue;
+				PeerData target = chosen[chunkId][r];
+				long serverRq = nextServerRq();
+				ControlFrame.Encoder storeReq = replyEncoder.get().begin("STORE_REQ", binaryPeers.contains(target.getName()))
+						.putRq(serverRq).put(fileName).put(chunkId).put(owner).put(upload.fileId);
+				send(ds, target.getUdpAddress(), storeReq);
+			}
+		}
+	}
+
+	/**
+	 * Picks the replicas of every content-defined chunk: candidates that already store a chunk with
+	 * the same content hash come first and are flagged in held, the rest are placed as usual.
+	 * Returns null if some chunk could not get a single replica.
+	 */
+	private static PeerData[][] placeDeduplicated(int uploadId, List<PeerData> candidates, int[] lengths, String[] hashes, int replicas, boolean[][] held) {
+		Map<String, PeerData> byName = new HashMap<>();
+		for (PeerData pd : candidates) byName.put(pd.getName(), pd);
+		PeerData[][] chosen = new PeerData[hashes.length][];
+		for (int chunkId = 0; chunkId < hashes.length; chunkId++) {
+			List<PeerData> picked = new ArrayList<>(replicas);
+			for (int peerId : chunkTable.holdersOf(hashes[chunkId])) {
+				PeerData pd = byName.get(chunkTable.peerName(peerId));
+				if (pd != null && picked.size() < replicas) picked.add(pd);
+			}
+			int alreadyHeld = picked.size();
+			if (alreadyHeld < replicas) {
+				List<PeerData> others = new ArrayList<>(candidates);
+				others.removeAll(picked);
+				PeerData[][] extra = placement.place(uploadId, others, 1, replicas - alreadyHeld, lengths[chunkId]);
+				if (extra != null) picked.addAll(List.of(extra[0]));
+			}
+			if (picked.isEmpty()) return null;
+			chosen[chunkId] = picked.toArray(new PeerData[0]);
+			held[chunkId] = new boolean[chosen[chunkId].length];
+			for (int r = 0; r < alreadyHeld; r++) held[chunkId][r] = true;
+		}
+		return chosen;
+	}
+
+	//len:hash entries must be positive lengths summing to fileSize and 32 lowercase hex digit hashes
+	private static boolean parseManifest(String[] entries, long fileSize, int[] lengths, String[] hashes) {
+		if (entries.length == 0) return false;
+		long total = 0;
+		for (int i = 0; i < entries.length; i++) {
+			int colon = entries[i].indexOf(':');
+			if (colon <= 0) return false;
+			lengths[i] = safeInt(entries[i].substring(0, colon));
+			hashes[i] = entries[i].substring(colon + 1);
+			if (lengths[i] < 0 || !hashes[i].matches("[0-9a-f]{32}")) return false;
+			total += lengths[i];
+		}
+		return total == fileSize;
+	}
+
+	//CHUNK_OK RQ# File_Name Chunk_ID Upload_ID / CHUNK_ERROR RQ# File_Name Chunk_ID Reason Upload_ID: Forward to owner peer
+	private static void handleChunkAck(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) throws IOException {
+		String cmd = frame.command();
+		System.out.println(cmd + " received: " + frame);
+		//Extract file name from message to find owner
+		if (frame.size() >= 3) {
+			String fileNameAck = frame.string(2);
+			//Find owner peer for this upload
+			ChunkTable.FileEntry entry = uploadFor(frame, "CHUNK_ERROR".equals(cmd) ? 5 : 4, fileNameAck);
+			PeerData ownerPeer = entry != null ? peers.get(entry.owner) : null;
+			//Forward the datagram to the owner exactly as it came in
+			if (ownerPeer != null) {
+				ds.send(frame.datagram(), ownerPeer.getUdpAddress());
+				System.out.printf("Forwarded %s to owner %s%n", cmd, ownerPeer.getName());
+			}
+		}
+	}
 
+	//STORE_ACK RQ# File_Name Chunk_ID Upload_ID
+	private static void handleStoreAck(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) {
+		if (frame.size() >= 4) {
+			String fileNameAck = frame.string(2);
+			int chunkIdAck = frame.intAt(3);
+			//Identify which peer sent this
+			String storagePeerName = peerNameAt(from);
+			System.out.printf("STORE_ACK received: file=%s chunk=%d from peer=%s%n", fileNameAck, chunkIdAck, storagePeerName);
+			//Update backup table: the upload id names the exact owner:filename entry
+			ChunkTable.FileEntry entry = uploadFor(frame, 4, fileNameAck);
+			if (storagePeerName == null) return;
+			if (entry != null && chunkTable.recordChunk(entry, chunkIdAck, chunkTable.internPeer(storagePeerName))) {
+				stateLog.store(entry, chunkIdAck, storagePeerName);
+				replication.stored(entry, chunkIdAck, storagePeerName); // a repair copy may stand in for other chunks too
+			} else if (frame.size() > 4 && (entry == null || (chunkIdAck >= 0 && chunkIdAck < entry.numChunks))) {
+				//an upload that is already gone, or a copy beyond the chunk's replicas: nothing will ever read it
+				reaper.stray(storagePeerName, fileNameAck, frame.intAt(4), chunkIdAck, entry != null ? entry.hash(chunkIdAck) : null);
+			}
+		}
+	}
+
+	//BACKUP_DONE RQ# File_Name [Upload_ID [Checksum]]: the upload becomes the file's backup, replacing the previous manifest.
+	//The whole-file CRC32 comes here when the owner only learned it while streaming the chunks (BACKUP_REQ then had 0).
+	//Binary peers retransmit it until they get BACKUP_COMMITTED RQ# File_Name Upload_ID (or BACKUP-DENIED)
+	private static void handleBackupDone(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) throws IOException {
+		if (frame.size() >= 3) {
+			long rq = frame.longAt(1);
+			String fileNameDone = frame.string(2);
+			String ownerName = peerNameAt(from);
+			System.out.printf("BACKUP_DONE received: file=%s from owner=%s%s%n", fileNameDone, ownerName,
+					frame.size() > 4 ? " checksum=" + frame.longAt(4) : "");
+			if (ownerName == null) {
+				if (frame.isBinary()) sendBackupDenied(ds, from, frame, rq, "NotRegistered");
+				return;
+			}
+			ChunkTable.FileEntry entry = frame.size() > 3 ? chunkTable.byUploadId(frame.intAt(3)) : chunkTable.pending(ownerName, fileNameDone);
+			if (entry == null || !entry.owner.equals(ownerName) || !entry.fileName.equals(fileNameDone)) {
+				System.out.printf("BACKUP_DONE for unknown upload of %s ignored%n", fileNameDone);
+				if (frame.isBinary()) sendBackupDenied(ds, from, frame, rq, "UnknownUpload");
+				return;
+			}
+			ChunkTable.FileEntry retired = chunkTable.get(ownerName, fileNameDone);
+			if (chunkTable.commit(entry)) {
+				stateLog.commit(entry);
+				placement.settle(entry.fileId);
+				if (retired != null && retired != entry) {
+					placement.release(retired.fileId);
+					reaper.retire(retired);
 				}
+				System.out.printf("Upload %d committed as the backup of %s:%s (%d/%d chunks acknowledged so far)%n",
+						entry.fileId, ownerName, fileNameDone, entry.storedChunks(), entry.numChunks);
+			} else if (chunkTable.get(ownerName, fileNameDone) != entry) {
+				placement.release(entry.fileId); // superseded by a newer upload that was committed first
+				reaper.retire(entry);
 			}
-            ds.close();
-        } catch (SocketException e) {
-            System.err.println("Socket error: " + e.getMessage());
-        } catch (IOException e) {
-            System.err.println("I/O error: " + e.getMessage());
-        }
+			if (!frame.isBinary()) return; // text peers do not wait for an answer
+			if (chunkTable.get(ownerName, fileNameDone) == entry) {
+				send(ds, from, reply("BACKUP_COMMITTED", frame).putRq(rq).put(fileNameDone).put(entry.fileId));
+			} else {
+				sendBackupDenied(ds, from, frame, rq, "Superseded"); // a newer upload of the file was committed first
+			}
+		}
+	}
+
+	//CHUNKS_DELETED RQ# Count: a storage peer carried out a DELETE_CHUNKS
+	private static void handleChunksDeleted(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) {
+		if (frame.size() >= 3 && peerNameAt(from) != null) reaper.acked(frame.longAt(1), frame.intAt(2));
+	}
+
+	//RESTORE_OK RQ# File_Name
+	private static void handleRestoreOk(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) {
+		if (frame.size() >= 3) {
+			long rq = frame.longAt(1);
+			String fileName = frame.string(2);
+			String ownerName = peerNameAt(from);
+			System.out.printf("RESTORE_OK received: rq=%02d file=%s from owner=%s - Restoration successful%n", rq, fileName, ownerName);
+		}
+	}
+
+	//RESTORE_FAIL RQ# File_Name Reason
+	private static void handleRestoreFail(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) {
+		if (frame.size() >= 3) {
+			long rq = frame.longAt(1);
+			String fileName = frame.string(2);
+			String reason = frame.size() >= 4 ? frame.string(3) : "Unknown";
+			String ownerName = peerNameAt(from);
+			System.out.printf("RESTORE_FAIL received: rq=%02d file=%s from owner=%s - Reason: %s%n", rq, fileName, ownerName, reason);
+		}
+	}
+
+	//RESTORE_REQ RQ# File_Name
+	private static void handleRestoreReq(DatagramChannel ds, InetSocketAddress from, ControlFrame frame) throws IOException {
+		if (frame.size() < 3) {
+			sendRestoreFail(ds, from, frame, frame.longAt(1), "UNKNOWN", "Malformed");
+			return;
+		}
+
+		long rq = frame.longAt(1);
+		String fileName = frame.string(2);
+
+		// find which peer is asking (owner)
+		String owner = peerNameAt(from);
+		if (owner == null) {
+			sendRestoreFail(ds, from, frame, rq, fileName, "NotRegistered");
+			return;
+		}
+
+		ChunkTable.FileEntry entry = chunkTable.get(owner, fileName);
+		if (entry == null || entry.storedChunks() == 0) {
+			sendRestoreFail(ds, from, frame, rq, fileName, "NoBackupFound");
+			return;
+		}
+
+		// peer ids are resolved straight into the reply, one name per chunk in chunk order
+		StringBuilder sb = planBuilder.get();
+		sb.setLength(0);
+		if (!chunkTable.appendPeerList(entry, sb)) {
+			sendRestoreFail(ds, from, frame, rq, fileName, "IncompleteBackup");
+			return;
+		}
+		ControlFrame.Encoder plan = reply("RESTORE_PLAN", frame).putRq(rq).put(fileName).put(sb)
+				.put(entry.chunkSize).put(entry.fileSize).put(entry.fileId);
+		if (entry.isContentDefined()) {
+			sb.setLength(0);
+			chunkTable.appendManifest(entry, sb);
+			plan.put("CDC").put(sb);
+		}
+		System.out.printf("Sending: RESTORE_PLAN %02d %s (%d chunks)%n", rq, fileName, entry.numChunks);
+		send(ds, from, plan);
+	}
+
+	//In-flight upload an ack belongs to, from its Upload_ID field; an ack without one cannot tell owners of the same file name apart
+	private static ChunkTable.FileEntry uploadFor(ControlFrame frame, int uploadIdIndex, String fileName) {
+		if (frame.size() <= uploadIdIndex) return null;
+		ChunkTable.FileEntry entry = chunkTable.byUploadId(frame.intAt(uploadIdIndex));
+		return entry != null && entry.fileName.equals(fileName) ? entry : null;
+	}
+
+	//Name of the registered peer whose UDP endpoint sent a datagram, or null
+	private static String peerNameAt(InetSocketAddress from) {
+		PeerData pd = peersByAddr.get(from);
+		return pd != null ? pd.getName() : null;
+	}
+
+	//Chunks start at MIN_CHUNK_SIZE and grow so that a plan never lists more than MAX_CHUNKS peers
+	private static int chunkSizeFor(long fileSize) {
+		long size = Math.max(MIN_CHUNK_SIZE, (fileSize + MAX_CHUNKS - 1) / MAX_CHUNKS);
+		return (int) Math.min(size, Integer.MAX_VALUE);
 	}
 
     private static int safeInt(String s) {
         try { return Integer.parseInt(s); } catch (Exception e) { return 0; }
     }
-	private static long safeLong(String s) {
-		try { return Long.parseLong(s); } catch (Exception e) { return 0L; }
+	//Starts a reply in the same wire format as the request it answers
+	private static ControlFrame.Encoder reply(String command, ControlFrame request) {
+		return replyEncoder.get().begin(command, request.isBinary());
 	}
-    private static void sendSimple(DatagramSocket ds, DatagramPacket req, String text) throws IOException {
-        byte[] d = text.getBytes();
-        ds.send(new DatagramPacket(d, d.length, req.getAddress(), req.getPort()));
-    }
 
-	public static void acceptRegistration(DatagramSocket socket, InetAddress clientAddr, int serverPort, String name,
-			int tcpPort, int storageCapacity, int rq) throws IOException {
-		//int udpPort = socket.getLocalPort();
-		String response = formatAcceptResponse(rq);
-		byte[] sendData = response.getBytes();
-		DatagramPacket dpSendResponse = new DatagramPacket(sendData, sendData.length, clientAddr, serverPort);
-		socket.send(dpSendResponse);
+	private static void send(DatagramChannel ds, InetSocketAddress to, ControlFrame.Encoder msg) throws IOException {
+		ByteBuffer datagram = msg.datagram();
+		String key = replyKey.get();
+		if (key != null && to.equals(replyTo.get())) replies.complete(key, datagram);
+		ds.send(datagram, to);
 	}
 
-	public static void denyRegistration(DatagramSocket socket, InetAddress clientAddr, int serverPort, String name,
-			int tcpPort, int storageCapacity, int rq, String reason) throws IOException {
-		String response = formatDenyResponse(rq, reason);
-		byte[] sendData = response.getBytes();
-		DatagramPacket dpSendResponse = new DatagramPacket(sendData, sendData.length, clientAddr, serverPort);
-		socket.send(dpSendResponse);
+	private static void sendBackupDenied(DatagramChannel ds, InetSocketAddress to, ControlFrame request, long rq, String reason) throws IOException {
+		send(ds, to, reply("BACKUP-DENIED", request).putRq(rq).put("REASON:").put(reason));
 	}
 
-	public static void acceptDeregistration(DatagramSocket socket, InetAddress clientAddr, int serverPort, String name,
-			int tcpPort, int storageCapacity, int rq, String reason) throws IOException {
-		String response = "Deregistration accepted.";
-		byte[] sendData = response.getBytes();
-		DatagramPacket dpSendResponse = new DatagramPacket(sendData, sendData.length, clientAddr, serverPort);
-		socket.send(dpSendResponse);
+	private static void sendRestoreFail(DatagramChannel ds, InetSocketAddress to, ControlFrame request, long rq, String fileName, String reason) throws IOException {
+		send(ds, to, reply("RESTORE_FAIL", request).putRq(rq).put(fileName).put(reason));
 	}
 
-    public static String formatAcceptResponse(int rq) {
-		//Response from server that project expects to be sent
-		return String.format("REGISTERED %d", rq);
+	public static void acceptRegistration(DatagramChannel socket, InetSocketAddress client, ControlFrame request, long rq) throws IOException {
+		//Response from server that project expects to be sent: REGISTERED RQ#
+		send(socket, client, reply("REGISTERED", request).put(rq));
 	}
-	public static String formatDenyResponse(int rq, String reason) {
-		//Response from server that project expects to be sent
-		return String.format("REGISTER-DENIED %d %s", rq, reason);
 
+	public static void denyRegistration(DatagramChannel socket, InetSocketAddress client, ControlFrame request, long rq, String reason) throws IOException {
+		//REGISTER-DENIED RQ# Reason
+		send(socket, client, reply("REGISTER-DENIED", request).put(rq).putWords(reason));
 	}
 }
@@ -0,0 +1,413 @@
+package src.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import src.peer.PeerData;
+
+/**
+ * Write-ahead log plus snapshots of the coordinator state, so a restarted server still knows every
+ * registered peer and where each chunk lives.
+ *
+ * Every state change is appended to the current wal-N.log segment as [length][crc32][record].
+ * Appends only go to a buffer; a background thread flushes and fsyncs the segment every FLUSH_MS,
+ * so a datagram never waits on the disk and a crash loses at most the last few milliseconds.
+ * After SNAPSHOT_EVERY records the log rolls to a new segment and the peer registry and chunk table
+ * are written to snapshot.bin, which names the first segment it does not cover. Startup loads the
+ * snapshot and replays only the segments after it, so recovery time is bounded by the snapshot
+ * size plus at most SNAPSHOT_EVERY records.
+ *
+ * A backup is logged as an UPLOAD when its plan goes out and a COMMIT once the owner reports
+ * BACKUP_DONE.
+ *
+ * State is always changed before it is logged. A snapshot taken while workers are running may then
+ * already contain some of the records of the segment after it, so every record replays idempotently.
+ */
+class StateLog implements AutoCloseable {
+	private static final int MAGIC = 0x434F4F52; // "COOR"
+	private static final long FLUSH_MS = 100;
+	private static final int SNAPSHOT_EVERY = 100_000;
+
+	private static final byte REGISTER = 1;
+	private static final byte DEREGISTER = 2;
+	private static final byte UPLOAD = 3;
+	private static final byte COMMIT = 4;
+	private static final byte STORE = 5;
+	private static final byte DROP_PEER = 6;
+
+	private final Path dir;
+	private final Map<String, PeerData> peers;
+	private final ChunkTable table;
+
+	private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+	private final DataOutputStream record = new DataOutputStream(recordBytes);
+	private final CRC32 crc = new CRC32();
+	private long segment;
+	private FileChannel channel;
+	private DataOutputStream out;
+	private int sinceSnapshot;
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "state-log");
+		t.setDaemon(true);
+		return t;
+	});
+
+	StateLog(Path dir, Map<String, PeerData> peers, ChunkTable table) {
+		this.dir = dir;
+		this.peers = peers;
+		this.table = table;
+	}
+
+	/**
+	 * Loads the snapshot and replays the log segments after it into peers and table, then opens a
+	 * fresh segment for new records and starts the background flusher. Returns the number of replayed records.
+	 */
+	int recover() throws IOException {
+		Files.createDirectories(dir);
+		long firstSegment = loadSnapshot();
+		List<Long> segments = listSegments();
+		int replayed = 0;
+		long last = firstSegment - 1;
+		for (long seg : segments) {
+			if (seg < firstSegment || Files.size(segmentPath(seg)) == 0) {
+				Files.deleteIfExists(segmentPath(seg)); // already covered by the snapshot, or never written
+				continue;
+			}
+			replayed += replay(segmentPath(seg));
+			last = seg;
+		}
+		//never append after a possibly torn tail: new records go to a new segment
+		openSegment(last + 1);
+		sinceSnapshot = replayed;
+		flusher.scheduleAtFixedRate(this::flushAndMaybeSnapshot, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+		return replayed;
+	}
+
+	void register(PeerData pd) {
+		synchronized (this) {
+			try {
+				record.writeByte(REGISTER);
+				record.writeUTF(pd.getName());
+				record.writeUTF(pd.getRole());
+				record.writeUTF(pd.getIp().getHostAddress());
+				record.writeInt(pd.getUdpPort());
+				record.writeInt(pd.getTcpPort());
+				record.writeUTF(pd.getStorage());
+				append();
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+
+	void deregister(String name) {
+		synchronized (this) {
+			try {
+				record.writeByte(DEREGISTER);
+				record.writeUTF(name);
+				append();
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+
+	void begin(ChunkTable.FileEntry e) {
+		synchronized (this) {
+			try {
+				record.writeByte(UPLOAD);
+				record.writeInt(e.fileId);
+				record.writeUTF(e.owner);
+				record.writeUTF(e.fileName);
+				record.writeLong(e.fileSize);
+				record.writeInt(e.chunkSize);
+				record.writeInt(e.numChunks);
+				record.writeInt(e.replicas);
+				record.writeBoolean(e.isContentDefined());
+				if (e.isContentDefined()) {
+					for (int i = 0; i < e.numChunks; i++) {
+						record.writeInt(e.lengths[i]);
+						record.writeUTF(e.hashes[i]);
+					}
+				}
+				append();
+			} catch (IOException ex) {
+				failed(ex);
+			}
+		}
+	}
+
+	/** The owner finished the upload and it replaced the file's previous backup. */
+	void commit(ChunkTable.FileEntry e) {
+		synchronized (this) {
+			try {
+				record.writeByte(COMMIT);
+				record.writeInt(e.fileId);
+				append();
+			} catch (IOException ex) {
+				failed(ex);
+			}
+		}
+	}
+
+	void store(ChunkTable.FileEntry e, int chunkId, String peerName) {
+		synchronized (this) {
+			try {
+				record.writeByte(STORE);
+				record.writeInt(e.fileId);
+				record.writeInt(chunkId);
+				record.writeUTF(peerName);
+				append();
+			} catch (IOException ex) {
+				failed(ex);
+			}
+		}
+	}
+
+	/** The peer's replicas were dropped from the chunk table (it deregistered or timed out). */
+	void dropPeer(String name) {
+		synchronized (this) {
+			try {
+				record.writeByte(DROP_PEER);
+				record.writeUTF(name);
+				append();
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	}
+
+	//caller holds the lock and has just written one record into recordBytes
+	private void append() throws IOException {
+		if (out == null) throw new IOException("log is closed");
+		crc.reset();
+		crc.update(recordBytes.toByteArray(), 0, recordBytes.size());
+		out.writeInt(recordBytes.size());
+		out.writeInt((int) crc.getValue());
+		recordBytes.writeTo(out);
+		recordBytes.reset();
+		sinceSnapshot++;
+	}
+
+	private void failed(IOException e) {
+		recordBytes.reset();
+		System.err.println("[STATE] Could not append to the write-ahead log: " + e.getMessage());
+	}
+
+	private void flushAndMaybeSnapshot() {
+		try {
+			FileChannel toSync;
+			long snapshotAt = -1;
+			synchronized (this) {
+				if (out == null) return;
+				out.flush();
+				toSync = channel;
+				if (sinceSnapshot >= SNAPSHOT_EVERY) {
+					//roll over once in a long while; that segment's final fsync is the only one taken under the lock
+					channel.force(false);
+					out.close();
+					openSegment(segment + 1);
+					sinceSnapshot = 0;
+					snapshotAt = segment;
+				}
+			}
+			if (snapshotAt >= 0) {
+				writeSnapshot(snapshotAt);
+			} else {
+				toSync.force(false);
+			}
+		} catch (IOException e) {
+			System.err.println("[STATE] Flush failed: " + e.getMessage());
+		}
+	}
+
+	//snapshot covering everything logged before segment firstUncovered
+	private void writeSnapshot(long firstUncovered) throws IOException {
+		Path tmp = dir.resolve("snapshot.tmp");
+		try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			 DataOutputStream snap = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(fc), 1 << 16))) {
+			snap.writeInt(MAGIC);
+			snap.writeLong(firstUncovered);
+			List<PeerData> registered = new ArrayList<>(peers.values());
+			snap.writeInt(registered.size());
+			for (PeerData pd : registered) {
+				snap.writeUTF(pd.getName());
+				snap.writeUTF(pd.getRole());
+				snap.writeUTF(pd.getIp().getHostAddress());
+				snap.writeInt(pd.getUdpPort());
+				snap.writeInt(pd.getTcpPort());
+				snap.writeUTF(pd.getStorage());
+			}
+			table.writeSnapshot(snap);
+			snap.flush();
+			fc.force(true);
+		}
+		Files.move(tmp, dir.resolve("snapshot.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		for (long seg : listSegments()) {
+			if (seg < firstUncovered) Files.deleteIfExists(segmentPath(seg));
+		}
+		System.out.printf("[STATE] Snapshot written; replay now starts at segment %d.%n", firstUncovered);
+	}
+
+	//returns the first segment the snapshot does not cover (0 without a snapshot)
+	private long loadSnapshot() throws IOException {
+		Path snapshot = dir.resolve("snapshot.bin");
+		if (!Files.exists(snapshot)) return 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+			int magic = in.readInt();
+			if (magic != MAGIC) throw new IOException("Not a coordinator snapshot: " + snapshot);
+			long firstUncovered = in.readLong();
+			int numPeers = in.readInt();
+			for (int i = 0; i < numPeers; i++) {
+				PeerData pd = new PeerData(in.readUTF(), in.readUTF(), InetAddress.getByName(in.readUTF()), in.readInt(), in.readInt(), in.readUTF());
+				peers.put(pd.getName(), pd);
+			}
+			table.readSnapshot(in);
+			return firstUncovered;
+		}
+	}
+
+	private int replay(Path path) throws IOException {
+		int count = 0;
+		try (InputStream raw = Files.newInputStream(path);
+			 DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+			CRC32 check = new CRC32();
+			byte[] buf = new byte[256];
+			while (true) {
+				int len;
+				int expected;
+				try {
+					len = in.readInt();
+					expected = in.readInt();
+					if (len < 0 || len > 1 << 20) break;
+					if (buf.length < len) buf = new byte[len];
+					in.readFully(buf, 0, len);
+				} catch (EOFException torn) {
+					break; // the crash cut the last record short
+				}
+				check.reset();
+				check.update(buf, 0, len);
+				if ((int) check.getValue() != expected) break;
+				apply(new DataInputStream(new ByteArrayInputStream(buf, 0, len)));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void apply(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case REGISTER: {
+				PeerData pd = new PeerData(in.readUTF(), in.readUTF(), InetAddress.getByName(in.readUTF()), in.readInt(), in.readInt(), in.readUTF());
+				peers.put(pd.getName(), pd);
+				break;
+			}
+			case DEREGISTER:
+				peers.remove(in.readUTF());
+				break;
+			case UPLOAD: {
+				int fileId = in.readInt();
+				String owner = in.readUTF();
+				String fileName = in.readUTF();
+				long fileSize = in.readLong();
+				int chunkSize = in.readInt();
+				int numChunks = in.readInt();
+				int replicas = in.readInt();
+				int[] lengths = null;
+				String[] hashes = null;
+				if (in.readBoolean()) {
+					lengths = new int[numChunks];
+					hashes = new String[numChunks];
+					for (int i = 0; i < numChunks; i++) {
+						lengths[i] = in.readInt();
+						hashes[i] = in.readUTF();
+					}
+				}
+				table.restore(fileId, owner, fileName, fileSize, chunkSize, numChunks, replicas, lengths, hashes);
+				break;
+			}
+			case COMMIT: {
+				ChunkTable.FileEntry entry = table.byUploadId(in.readInt());
+				if (entry != null) table.commit(entry);
+				break;
+			}
+			case STORE: {
+				ChunkTable.FileEntry entry = table.byUploadId(in.readInt());
+				int chunkId = in.readInt();
+				String peer = in.readUTF();
+				if (entry != null) table.recordChunk(entry, chunkId, table.internPeer(peer));
+				break;
+			}
+			case DROP_PEER:
+				table.removePeer(table.internPeer(in.readUTF()), (entry, chunkId) -> { });
+				break;
+			default:
+				throw new IOException("Unknown write-ahead log record");
+		}
+	}
+
+	private void openSegment(long seg) throws IOException {
+		segment = seg;
+		channel = FileChannel.open(segmentPath(seg), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+	}
+
+	private List<Long> listSegments() throws IOException {
+		List<Long> segments = new ArrayList<>();
+		try (var files = Files.list(dir)) {
+			files.forEach(p -> {
+				String n = p.getFileName().toString();
+				if (n.startsWith("wal-") && n.endsWith(".log")) {
+					try {
+						segments.add(Long.parseLong(n.substring(4, n.length() - 4)));
+					} catch (NumberFormatException ignored) {
+					}
+				}
+			});
+		}
+		segments.sort(null);
+		return segments;
+	}
+
+	private Path segmentPath(long seg) {
+		return dir.resolve("wal-" + seg + ".log");
+	}
+
+	/** Flushes and syncs whatever is still buffered. */
+	@Override
+	public void close() {
+		flusher.shutdownNow();
+		synchronized (this) {
+			if (out == null) return;
+			try {
+				out.flush();
+				channel.force(false);
+				out.close();
+			} catch (IOException e) {
+				System.err.println("[STATE] Close failed: " + e.getMessage());
+			}
+			out = null;
+		}
+	}
+}